@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.dataconservancy.pass.model.Journal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting from a Crossref record, as received, to the PASS journal it describes: through the streaming record
+ * the service uses, and through a JSON object tree for comparison. Records of several sizes are used, since the
+ * cost is dominated by getting past the parts of a record the service does not need.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildPassJournalBenchmark {
+
+    @Param({"0", "100", "1000"})
+    public int references;
+
+    private PassDoiServlet servlet;
+    private byte[] record;
+
+    @Setup
+    public void setUp() {
+        servlet = new PassDoiServlet();
+        record = CrossrefPayloads.record(references);
+    }
+
+    @Benchmark
+    public Journal streamedRecord() {
+        return servlet.buildPassJournal(CrossrefRecord.parse(record));
+    }
+
+    @Benchmark
+    public Journal objectTree() {
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(record))) {
+            JsonObject object = reader.readObject();
+            return servlet.buildPassJournal(object);
+        }
+    }
+}
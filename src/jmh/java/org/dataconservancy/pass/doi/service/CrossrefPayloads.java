@@ -0,0 +1,82 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Crossref works records for the benchmarks. They are built from a record recorded from Crossref, padded out with
+ * references to the sizes seen for longer articles; the reference list is the bulk of most large records, and is
+ * of no interest to the service, so it is what a parser has to get through quickly.
+ */
+final class CrossrefPayloads {
+
+    private static final String RECORDED = "/crossref-work.json";
+    private static final String MESSAGE = "\"message\":{";
+
+    private CrossrefPayloads() {
+    }
+
+    /**
+     * @param references the number of references to add to the recorded record
+     * @return the record, as Crossref would send it
+     */
+    static byte[] record(int references) {
+        String recorded = recorded();
+        int at = recorded.indexOf(MESSAGE) + MESSAGE.length();
+        StringBuilder json = new StringBuilder(recorded.length() + references * 300);
+        json.append(recorded, 0, at);
+        if (references > 0) {
+            json.append("\"reference\":[");
+            for (int i = 0; i < references; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"key\":\"10.4137\\/CMC.S38446-ref").append(i)
+                    .append("\",\"doi-asserted-by\":\"crossref\",\"first-page\":\"").append(100 + i)
+                    .append("\",\"DOI\":\"10.1000\\/ref.").append(i)
+                    .append("\",\"article-title\":\"Cardiac involvement in neuromuscular disorders, part ").append(i)
+                    .append("\",\"volume\":\"").append(i % 40)
+                    .append("\",\"author\":\"Finsterer\",\"year\":\"2009\",")
+                    .append("\"journal-title\":\"Journal of the Neurological Sciences\"}");
+            }
+            json.append("],");
+        }
+        json.append(recorded, at, recorded.length());
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String recorded() {
+        try (InputStream in = CrossrefPayloads.class.getResourceAsStream(RECORDED)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing " + RECORDED);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
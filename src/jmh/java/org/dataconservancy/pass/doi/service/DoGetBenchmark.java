@@ -0,0 +1,165 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests for a DOI through {@code doGet}, from the query parameter to the bytes written back, with Crossref
+ * played by a local server sending a recorded record and PASS held in memory. A cached DOI is answered from the
+ * result cache; an uncached one is a new DOI each time, which goes to Crossref and PASS and is written out in
+ * full.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DoGetBenchmark {
+
+    @Param({"0", "1000"})
+    public int references;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private MockWebServer crossref;
+    private PassDoiServlet servlet;
+    private final AtomicLong dois = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] record = CrossrefPayloads.record(references);
+        crossref = new MockWebServer();
+        crossref.setServerSocketFactory(new NoDelayServerSocketFactory());
+        crossref.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                //a generous advertised limit, so that the rate limiter is exercised without holding us back
+                return new MockResponse().setBody(new Buffer().write(record))
+                                         .addHeader(CrossrefRateLimiter.LIMIT_HEADER, 1000000)
+                                         .addHeader(CrossrefRateLimiter.INTERVAL_HEADER, "1s");
+            }
+        });
+        crossref.start();
+
+        InMemoryPassClient pass = new InMemoryPassClient();
+        pass.add("Clinical Medicine Insights: Cardiology", "Print:1179-5468", "Online:1179-5468");
+
+        servlet = new PassDoiServlet();
+        servlet.passClient = pass.client();
+        servlet.init(null);
+        servlet.BASE_URL = crossref.url("/").toString();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        servlet.destroy();
+        crossref.shutdown();
+    }
+
+    @Benchmark
+    public long doGet() throws Exception {
+        String doi = cached ? "10.4137/cmc.s38446" : "10.4137/cmc.s" + dois.incrementAndGet();
+        servlet.doGet(request(doi), response());
+        return written.get();
+    }
+
+    private static HttpServletRequest request(String doi) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getParameter":
+                        return "doi".equals(args[0]) ? doi : null;
+                    case "getServletPath":
+                        return "/journal";
+                    case "getContextPath":
+                        return "";
+                    case "getQueryString":
+                        return "doi=" + doi;
+                    case "isAsyncSupported":
+                        return false;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private HttpServletResponse response() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written.addAndGet(len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return out;
+                    case "setStatus":
+                    case "setContentType":
+                    case "setCharacterEncoding":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of a doi by the normalizer, against the regular expression it replaced, both as it was (compiled on
+ * every call) and with the pattern compiled once. Run with {@code -prof gc} to see the allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DoiNormalizerBenchmark {
+
+    private static final String REGEX = "^10\\.\\d{4,9}/[-._;()/:a-zA-Z0-9]+$";
+    private static final Pattern PATTERN = Pattern.compile(REGEX);
+
+    @Param({"10.4137/cmc.s38446", "https://doi.org/10.4137/CMC.S38446", "10.1002/(SICI)1097-4636(199706)35:4"})
+    public String doi;
+
+    @Benchmark
+    public String normalizer() {
+        return DoiNormalizer.normalize(doi);
+    }
+
+    @Benchmark
+    public String regexCompiledPerCall() {
+        return regex(doi, Pattern.compile(REGEX));
+    }
+
+    @Benchmark
+    public String regexPrecompiled() {
+        return regex(doi, PATTERN);
+    }
+
+    private static String regex(String doi, Pattern pattern) {
+        String criterion = "doi.org/";
+        int i = doi.indexOf(criterion);
+        String suffix = i >= 0 ? doi.substring(i + criterion.length()) : doi;
+        Matcher matcher = pattern.matcher(suffix);
+        return matcher.matches() ? suffix : null;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding and scoring the PASS journal for a name and ISSNs, against journals held in memory. With the journal
+ * index warm, this is the scoring alone; with it cold, every lookup goes to the PASS client on the lookup pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FindBenchmark {
+
+    @Param({"10000"})
+    public int journals;
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    private PassDoiServlet servlet;
+    private String name;
+    private List<String> issns;
+
+    @Setup
+    public void setUp() throws Exception {
+        InMemoryPassClient pass = new InMemoryPassClient();
+        for (int i = 0; i < journals; i++) {
+            pass.add("Journal of Example Studies " + i, "Print:" + issn(i), "Online:" + issn(journals + i));
+        }
+        //a journal sharing its name with another, and an issn with a third, so that scoring has work to do
+        pass.add("Journal of Example Studies 7");
+        pass.add("Other Journal", "Online:" + issn(journals + 7));
+
+        servlet = new PassDoiServlet();
+        servlet.passClient = pass.client();
+        servlet.init(null);
+
+        name = "Journal of Example Studies 7";
+        issns = Arrays.asList("Print:" + issn(7), "Online:" + issn(journals + 7));
+    }
+
+    @TearDown
+    public void tearDown() {
+        servlet.destroy();
+    }
+
+    @Benchmark
+    public URI find() {
+        if (!indexed) {
+            servlet.journalIndex.clear();
+        }
+        return servlet.find(name, issns);
+    }
+
+    /**
+     * @return a distinct valid issn for each number
+     */
+    private static String issn(int i) {
+        return Issn.value(Issn.of(i));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+
+/**
+ * Journals held in memory, behind the calls the service makes on a {@link PassClient}, so that benchmarks measure
+ * the service rather than Fedora and Elasticsearch. Journals are copied in and out, as they would be by a client
+ * talking to a real PASS, so that the service cannot change what is stored without updating it.
+ * <p>
+ * The client is a proxy, which answers the calls the service makes and throws
+ * {@link UnsupportedOperationException} for anything else. Each call can be made to take a while, and to fail now
+ * and then, as calls to a real PASS would.
+ */
+class InMemoryPassClient implements InvocationHandler {
+
+    private static final String BASE = "http://fcrepo:8080/fcrepo/rest/journals/";
+
+    private final Map<URI, Journal> journals = new ConcurrentHashMap<>();
+    private final Map<String, Set<URI>> byName = new ConcurrentHashMap<>();
+    private final Map<String, Set<URI>> byIssn = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    private final long latency;
+    private final double errorRate;
+
+    private final PassClient client = (PassClient) Proxy.newProxyInstance(
+        PassClient.class.getClassLoader(), new Class<?>[] {PassClient.class}, this);
+
+    InMemoryPassClient() {
+        this(0, 0);
+    }
+
+    /**
+     * @param latency   how long each call takes, in ms
+     * @param errorRate the share of calls, from 0 to 1, which fail with a runtime exception
+     */
+    InMemoryPassClient(long latency, double errorRate) {
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @return the client
+     */
+    PassClient client() {
+        return client;
+    }
+
+    /**
+     * store a journal, as if it had been loaded into PASS
+     *
+     * @param name  the journal name
+     * @param issns the typed issns of the journal
+     * @return the URI of the journal
+     */
+    URI add(String name, String... issns) {
+        Journal journal = new Journal();
+        journal.setJournalName(name);
+        Collections.addAll(journal.getIssns(), issns);
+        return create(journal);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == PassClient.class) {
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted during " + method.getName(), e);
+                }
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                throw new RuntimeException("Injected failure of " + method.getName());
+            }
+        }
+        switch (method.getName()) {
+            case "createResource":
+                return create((Journal) args[0]);
+            case "createAndReadResource":
+                return read(create((Journal) args[0]));
+            case "readResource":
+                return read((URI) args[0]);
+            case "updateResource":
+                update((Journal) args[0]);
+                return null;
+            case "updateAndReadResource":
+                update((Journal) args[0]);
+                return read(((Journal) args[0]).getId());
+            case "findAllByAttribute":
+                return findAll((String) args[1], args[2]);
+            case "findByAttribute":
+                Set<URI> found = findAll((String) args[1], args[2]);
+                return found.isEmpty() ? null : found.iterator().next();
+            case "processAllEntities":
+                @SuppressWarnings("unchecked")
+                Consumer<URI> processor = (Consumer<URI>) args[0];
+                journals.keySet().forEach(processor);
+                return journals.size();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryPassClient with " + journals.size() + " journals";
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private URI create(Journal journal) {
+        URI id = URI.create(BASE + ids.incrementAndGet());
+        Journal stored = copy(journal);
+        stored.setId(id);
+        journals.put(id, stored);
+        index(stored);
+        return id;
+    }
+
+    private Journal read(URI id) {
+        Journal stored = journals.get(id);
+        return stored == null ? null : copy(stored);
+    }
+
+    private void update(Journal journal) {
+        Journal stored = copy(journal);
+        Journal previous = journals.put(stored.getId(), stored);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(stored);
+    }
+
+    private Set<URI> findAll(String attribute, Object value) {
+        Map<String, Set<URI>> index = "name".equals(attribute) ? byName : "issns".equals(attribute) ? byIssn : null;
+        if (index == null) {
+            throw new UnsupportedOperationException("Finding journals by " + attribute);
+        }
+        Set<URI> found = value == null ? null : index.get(value.toString());
+        return found == null ? new HashSet<>() : new HashSet<>(found);
+    }
+
+    private void index(Journal journal) {
+        if (journal.getJournalName() != null) {
+            byName.computeIfAbsent(journal.getJournalName(), k -> ConcurrentHashMap.newKeySet()).add(journal.getId());
+        }
+        for (String issn : journal.getIssns()) {
+            byIssn.computeIfAbsent(issn, k -> ConcurrentHashMap.newKeySet()).add(journal.getId());
+        }
+    }
+
+    private void unindex(Journal journal) {
+        if (journal.getJournalName() != null) {
+            byName.getOrDefault(journal.getJournalName(), Collections.emptySet()).remove(journal.getId());
+        }
+        for (String issn : journal.getIssns()) {
+            byIssn.getOrDefault(issn, Collections.emptySet()).remove(journal.getId());
+        }
+    }
+
+    private static Journal copy(Journal journal) {
+        Journal copy = new Journal();
+        copy.setId(journal.getId());
+        copy.setJournalName(journal.getJournalName());
+        copy.setIssns(new ArrayList<>(journal.getIssns()));
+        copy.setNlmta(journal.getNlmta());
+        return copy;
+    }
+}
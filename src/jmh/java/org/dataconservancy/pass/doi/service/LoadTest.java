@@ -0,0 +1,366 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.doi.service.ServiceMetrics.Stage;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Drives the DOI service with concurrent requests, and reports the throughput and latency it sustains. The service
+ * runs in an embedded Jetty, as it would in the WAR, against a local server standing in for Crossref and journals
+ * held in memory standing in for PASS. Both stand-ins can be made slow and unreliable, so that the service can be
+ * sized without touching real services.
+ * <p>
+ * Each client thread sends a request, waits for the response, and sends the next, for the warmup period and then
+ * for the measured period. DOIs are drawn either uniformly or, as real traffic tends to be, from a Zipf
+ * distribution in which a few DOIs are asked for far more often than the rest. Options are given as
+ * {@code --name=value}; see {@link #usage()}. The service itself is configured by its usual environment variables.
+ */
+public class LoadTest {
+
+    private static final String TITLE = "Clinical Medicine Insights: Cardiology";
+    private static final String ISSN = "1179-5468";
+
+    private final Map<String, String> options;
+
+    private final int concurrency;
+    private final long warmup;
+    private final long duration;
+    private final int dois;
+    private final double[] popularity;
+    private final int journals;
+    private final int references;
+    private final long crossrefLatency;
+    private final double crossrefErrorRate;
+    private final long passLatency;
+    private final double passErrorRate;
+    private final int serverThreads;
+
+    private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        concurrency = intOption("concurrency", 32);
+        warmup = SECONDS.toNanos(intOption("warmup", 10));
+        duration = SECONDS.toNanos(intOption("duration", 60));
+        dois = intOption("dois", 10000);
+        String distribution = option("distribution", "zipf");
+        if (distribution.equals("zipf")) {
+            popularity = zipf(dois, Double.parseDouble(option("zipf-exponent", "1.0")));
+        } else if (distribution.equals("uniform")) {
+            popularity = null;
+        } else {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+        journals = intOption("journals", 1000);
+        references = intOption("references", 50);
+        crossrefLatency = intOption("crossref-latency", 200);
+        crossrefErrorRate = Double.parseDouble(option("crossref-error-rate", "0"));
+        passLatency = intOption("pass-latency", 20);
+        passErrorRate = Double.parseDouble(option("pass-error-rate", "0"));
+        serverThreads = intOption("server-threads", 200);
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                System.err.println(usage());
+                System.exit(arg.equals("--help") ? 0 : 1);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    static String usage() {
+        return "Options, with their defaults:\n" +
+               "  --concurrency=32          client threads, each with one request outstanding\n" +
+               "  --warmup=10               seconds of requests before measuring\n" +
+               "  --duration=60             seconds of requests measured\n" +
+               "  --dois=10000              distinct DOIs requested\n" +
+               "  --distribution=zipf       zipf or uniform popularity of the DOIs\n" +
+               "  --zipf-exponent=1.0       skew of the zipf distribution\n" +
+               "  --journals=1000           distinct journals the DOIs belong to\n" +
+               "  --references=50           references padding out each Crossref record\n" +
+               "  --crossref-latency=200    ms Crossref takes to answer, on average\n" +
+               "  --crossref-error-rate=0   share of Crossref requests answered with a 503\n" +
+               "  --pass-latency=20         ms each PASS call takes\n" +
+               "  --pass-error-rate=0       share of PASS calls which fail\n" +
+               "  --server-threads=200      threads of the embedded container";
+    }
+
+    void run() throws Exception {
+        MockWebServer crossref = crossref();
+        crossref.start();
+
+        PassDoiServlet servlet = new PassDoiServlet();
+        servlet.passClient = new InMemoryPassClient(passLatency, passErrorRate).client();
+        servlet.BASE_URL = crossref.url("/").toString();
+        Server server = server(servlet);
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        OkHttpClient client = client();
+        try {
+            System.out.println("Warming up for " + NANOSECONDS.toSeconds(warmup) + " s with " + concurrency +
+                               " clients");
+            long start = System.nanoTime();
+            long measureFrom = start + warmup;
+            long end = measureFrom + duration;
+            Worker[] workers = new Worker[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                workers[i] = new Worker(client, "http://localhost:" + port + "/journal?doi=", measureFrom, end);
+                workers[i].start();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            report(workers, servlet.metrics);
+        } finally {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+            server.stop();
+            crossref.shutdown();
+        }
+    }
+
+    /**
+     * @return the stand-in for Crossref, which answers every DOI with a record for one of the journals
+     */
+    private MockWebServer crossref() {
+        String record = new String(CrossrefPayloads.record(references), StandardCharsets.UTF_8);
+        //it would otherwise log every request
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        MockWebServer crossref = new MockWebServer();
+        crossref.setServerSocketFactory(new NoDelayServerSocketFactory());
+        crossref.setDispatcher(new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (crossrefLatency > 0) {
+                    //exponentially distributed, as the time to answer a request tends to be
+                    Thread.sleep((long) (-crossrefLatency * Math.log(1 - random.nextDouble())));
+                }
+                if (random.nextDouble() < crossrefErrorRate) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                int journal = Math.abs(request.getPath().hashCode() % journals);
+                return new MockResponse()
+                    .setBody(record.replace(TITLE, "Journal of Load Testing " + journal)
+                                   .replace(ISSN, Issn.value(Issn.of(journal))))
+                    //a generous advertised limit, so that the rate limiter does not hold the service back
+                    .addHeader(CrossrefRateLimiter.LIMIT_HEADER, 1000000)
+                    .addHeader(CrossrefRateLimiter.INTERVAL_HEADER, "1s");
+            }
+        });
+        return crossref;
+    }
+
+    private Server server(PassDoiServlet servlet) {
+        QueuedThreadPool threads = new QueuedThreadPool(serverThreads);
+        threads.setName("jetty");
+        Server server = new Server(threads);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        ServletHolder doi = new ServletHolder(servlet);
+        doi.setAsyncSupported(true);
+        doi.setInitOrder(1);
+        context.addServlet(doi, "/journal");
+        context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        server.setHandler(context);
+        return server;
+    }
+
+    private OkHttpClient client() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(concurrency);
+        dispatcher.setMaxRequestsPerHost(concurrency);
+        return new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(concurrency, 5, MINUTES))
+            .readTimeout(5, MINUTES)
+            .build();
+    }
+
+    private void report(Worker[] workers, ServiceMetrics metrics) {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.count;
+        }
+        long[] latencies = new long[count];
+        int at = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, at, worker.count);
+            at += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = duration / (double) SECONDS.toNanos(1);
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Requests: %d in %.0f s, %.1f per second", count, seconds,
+                                         count / seconds));
+        StringBuilder byStatus = new StringBuilder("Responses:");
+        for (Map.Entry<String, LongAdder> status : new TreeMap<>(statuses).entrySet()) {
+            byStatus.append(' ').append(status.getKey()).append(": ").append(status.getValue().sum());
+        }
+        System.out.println(byStatus);
+        if (count > 0) {
+            System.out.println(String.format(Locale.ROOT, "Latency (ms): p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                                             millis(percentile(latencies, 0.5)),
+                                             millis(percentile(latencies, 0.99)),
+                                             millis(percentile(latencies, 0.999)),
+                                             millis(latencies[count - 1])));
+        }
+
+        //the service's own view, including the warmup
+        System.out.println("Stages, as measured by the service during warmup and measurement:");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = metrics.getLatency(stage);
+            long n = histogram.getCount();
+            System.out.println(String.format(Locale.ROOT, "  %-8s %10d calls, mean %8.2f ms", stage.label(), n,
+                                             n == 0 ? 0 : histogram.getSum() * 1000 / n));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the cumulative probabilities of the ranks of a zipf distribution
+     */
+    private static double[] zipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 1; rank <= n; rank++) {
+            sum += 1 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private String nextDoi() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rank;
+        if (popularity == null) {
+            rank = random.nextInt(dois);
+        } else {
+            int found = Arrays.binarySearch(popularity, random.nextDouble());
+            rank = Math.min(dois - 1, found >= 0 ? found : -found - 1);
+        }
+        return "10.5555/load." + rank;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * a client, sending one request at a time until the end of the run
+     */
+    private class Worker extends Thread {
+        private final OkHttpClient client;
+        private final String url;
+        private final long measureFrom;
+        private final long end;
+
+        private long[] latencies = new long[1024];
+        private int count;
+
+        private Worker(OkHttpClient client, String url, long measureFrom, long end) {
+            super("load-client");
+            this.client = client;
+            this.url = url;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            for (long start = System.nanoTime(); start < end; start = System.nanoTime()) {
+                String status;
+                Request request = new Request.Builder().url(url + nextDoi()).build();
+                try (Response response = client.newCall(request).execute()) {
+                    response.body().bytes();
+                    status = String.valueOf(response.code());
+                } catch (IOException e) {
+                    status = e.getClass().getSimpleName();
+                }
+                long finish = System.nanoTime();
+                if (start >= measureFrom && finish <= end) {
+                    statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = finish - start;
+                }
+            }
+        }
+    }
+}
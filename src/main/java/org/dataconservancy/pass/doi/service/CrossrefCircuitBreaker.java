@@ -0,0 +1,218 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops requests going to Crossref while it is failing, so that they fail straight away rather than each waiting out
+ * the timeouts. The outcomes of the most recent requests are kept in a window; a request which fails, times out,
+ * gets a server error, or takes longer than the slow call threshold counts as a failure. Once the window holds
+ * enough requests and the share of failures reaches the threshold, the circuit opens.
+ * <p>
+ * While the circuit is open, requests fail with a {@link CircuitOpenException}. After the open period, the circuit
+ * is half open: a probe request, the last one to fail, is sent in the background, and client requests keep failing
+ * fast until it returns. If the probe succeeds the circuit closes, otherwise it opens again.
+ */
+class CrossrefCircuitBreaker implements Interceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefCircuitBreaker.class);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int minimumRequests;
+    private final double failureThreshold;
+    private final long slowCallThreshold;
+    private final long openPeriod;
+    private final ScheduledExecutorService scheduler;
+    private final Predicate<Request> probe;
+
+    //outcomes of the most recent requests, as a ring
+    private final boolean[] window;
+    private int windowStart;
+    private int windowSize;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private Request lastFailed;
+
+    private final Map<State, AtomicLong> transitions = new EnumMap<>(State.class);
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    /**
+     * @param windowSize        the number of recent requests whose outcomes are kept
+     * @param minimumRequests   the fewest requests in the window for the circuit to open
+     * @param failureThreshold  the share of failed requests in the window, from 0 to 1, at which the circuit opens
+     * @param slowCallThreshold the time in ms after which a request counts as a failure, even if it succeeds
+     * @param openPeriod        how long the circuit stays open before it is probed, in ms
+     * @param scheduler         runs the probes
+     * @param probe             sends a probe request, bypassing the circuit breaker, and tells whether it succeeded
+     */
+    CrossrefCircuitBreaker(int windowSize, int minimumRequests, double failureThreshold, long slowCallThreshold,
+                           long openPeriod, ScheduledExecutorService scheduler, Predicate<Request> probe) {
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumRequests = Math.max(1, Math.min(minimumRequests, window.length));
+        this.failureThreshold = failureThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openPeriod = openPeriod;
+        this.scheduler = scheduler;
+        this.probe = probe;
+        for (State s : State.values()) {
+            transitions.put(s, new AtomicLong());
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!allowRequest()) {
+            rejectedRequests.incrementAndGet();
+            throw new CircuitOpenException("The circuit to Crossref is " + getState() + "; not sending " +
+                                           request.url());
+        }
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            record(request, false);
+            throw e;
+        }
+        //a 429 is the rate limiter's business, and says nothing about whether Crossref is up
+        if (response.code() != 429) {
+            boolean slow = NANOSECONDS.toMillis(System.nanoTime() - start) > slowCallThreshold;
+            record(request, response.code() < 500 && !slow);
+        }
+        return response;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @param to a state
+     * @return the number of times the circuit has moved into the state
+     */
+    long getTransitions(State to) {
+        return transitions.get(to).get();
+    }
+
+    /**
+     * @return the number of requests failed without being sent because the circuit was not closed
+     */
+    long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    private synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    private synchronized void record(Request request, boolean success) {
+        if (state != State.CLOSED) {
+            //the outcome of a request sent before the circuit opened
+            return;
+        }
+        if (windowSize == window.length) {
+            if (!window[windowStart]) {
+                failures--;
+            }
+            windowStart = (windowStart + 1) % window.length;
+            windowSize--;
+        }
+        window[(windowStart + windowSize) % window.length] = success;
+        windowSize++;
+        if (!success) {
+            failures++;
+            lastFailed = request;
+        }
+        if (windowSize >= minimumRequests && failures >= failureThreshold * windowSize) {
+            open();
+        }
+    }
+
+    private void open() {
+        transition(State.OPEN);
+        try {
+            scheduler.schedule(this::probe, openPeriod, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //shutting down
+            LOG.debug("Not probing Crossref, as the scheduler has been shut down");
+        }
+    }
+
+    private void probe() {
+        Request request;
+        synchronized (this) {
+            transition(State.HALF_OPEN);
+            request = lastFailed;
+        }
+        boolean success;
+        try {
+            success = probe.test(request);
+        } catch (RuntimeException e) {
+            LOG.warn("Probe of Crossref failed", e);
+            success = false;
+        }
+        synchronized (this) {
+            if (success) {
+                windowStart = 0;
+                windowSize = 0;
+                failures = 0;
+                lastFailed = null;
+                transition(State.CLOSED);
+            } else {
+                open();
+            }
+        }
+    }
+
+    private void transition(State to) {
+        LOG.info("Crossref circuit breaker: " + state + " -> " + to);
+        state = to;
+        transitions.get(to).incrementAndGet();
+    }
+
+    /**
+     * the failure of a request which was not sent to Crossref because the circuit was open
+     */
+    static class CircuitOpenException extends IOException {
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps requests to Crossref within the rate limit Crossref advertises in the X-Rate-Limit-Limit and
+ * X-Rate-Limit-Interval headers of its responses. The limit is enforced by a token bucket shared by every request
+ * made through the client. A request which finds the bucket empty waits for a token, for at most the maximum wait,
+ * rather than failing straight away.
+ * <p>
+ * The number of requests in flight is also limited, and the limit adapts: it is halved whenever Crossref answers
+ * with a 429, and grows back by about one request per round of successful requests.
+ * <p>
+ * A request which cannot be sent within the maximum wait is answered locally with a 429, as Crossref would have
+ * answered it.
+ */
+class CrossrefRateLimiter implements Interceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefRateLimiter.class);
+
+    static final String LIMIT_HEADER = "X-Rate-Limit-Limit";
+    static final String INTERVAL_HEADER = "X-Rate-Limit-Interval";
+
+    private static final Pattern INTERVAL = Pattern.compile("\\s*(\\d+)\\s*(ms|s|m|h)?\\s*");
+
+    private final long maxWait;
+    private final int maxConcurrency;
+
+    //the rate limit: limit requests per interval
+    private int limit;
+    private long interval;
+    //tokens in the bucket, and when they were last topped up
+    private double tokens;
+    private long refilled;
+
+    //the current limit on requests in flight, and the requests in flight
+    private double concurrency;
+    private int inFlight;
+
+    private long throttledResponses;
+    private long rejectedRequests;
+
+    /**
+     * @param limit          requests allowed per interval, until Crossref says otherwise
+     * @param interval       the interval, in ms
+     * @param maxConcurrency the most requests in flight at once
+     * @param maxWait        the longest a request will wait to be sent, in ms
+     */
+    CrossrefRateLimiter(int limit, long interval, int maxConcurrency, long maxWait) {
+        this.limit = Math.max(1, limit);
+        this.interval = MILLISECONDS.toNanos(Math.max(1, interval));
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxWait = maxWait;
+        this.tokens = this.limit;
+        this.refilled = System.nanoTime();
+        this.concurrency = this.maxConcurrency;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!acquire()) {
+            LOG.warn("Gave up waiting to send a request to Crossref within its rate limit: " + request.url());
+            return tooManyRequests(request);
+        }
+        try {
+            Response response = chain.proceed(request);
+            update(response);
+            return response;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * @return the rate limit currently enforced, in requests per interval
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the interval of the rate limit currently enforced, in ms
+     */
+    synchronized long getInterval() {
+        return NANOSECONDS.toMillis(interval);
+    }
+
+    /**
+     * @return the current limit on requests in flight
+     */
+    synchronized int getConcurrency() {
+        return (int) concurrency;
+    }
+
+    /**
+     * Whether a request could be sent now while leaving part of the rate limit unused, for work which can be put
+     * off, such as refreshing records before they expire. Such work should not take the tokens, or the slots for
+     * requests in flight, which requests from clients are about to need.
+     *
+     * @param reserve the share of the tokens, and of the slots, to leave for other requests, in percent
+     * @return whether more than the reserve is free
+     */
+    synchronized boolean hasHeadroom(int reserve) {
+        refill(System.nanoTime());
+        return tokens >= 1 + limit * reserve / 100.0 && inFlight < (int) concurrency * (100 - reserve) / 100.0;
+    }
+
+    /**
+     * @return the number of 429 responses received from Crossref
+     */
+    synchronized long getThrottledResponses() {
+        return throttledResponses;
+    }
+
+    /**
+     * @return the number of requests answered locally because they could not be sent within the maximum wait
+     */
+    synchronized long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    /**
+     * wait for a token and a free slot for a request
+     *
+     * @return whether the request may be sent; false if the maximum wait passed first
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private synchronized boolean acquire() throws InterruptedIOException {
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(maxWait);
+        while (true) {
+            long now = System.nanoTime();
+            refill(now);
+            if (inFlight < (int) concurrency && tokens >= 1) {
+                tokens--;
+                inFlight++;
+                return true;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                rejectedRequests++;
+                return false;
+            }
+            long wait = remaining;
+            if (tokens < 1) {
+                //sleep until the next token is due, unless a finished request wakes us first
+                wait = Math.min(wait, (long) Math.ceil((1 - tokens) * interval / limit));
+            }
+            try {
+                NANOSECONDS.timedWait(this, Math.max(1, wait));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a request to Crossref");
+            }
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(limit, tokens + (double) (now - refilled) * limit / interval);
+        refilled = now;
+    }
+
+    /**
+     * adjust the rate limit to the one Crossref advertises, and the limit on requests in flight to the outcome of
+     * the request
+     */
+    private synchronized void update(Response response) {
+        Integer newLimit = parseLimit(response.header(LIMIT_HEADER));
+        Long newInterval = parseInterval(response.header(INTERVAL_HEADER));
+        if (newLimit != null && newInterval != null && (newLimit != limit || newInterval != interval)) {
+            refill(System.nanoTime());
+            LOG.info("Crossref rate limit is now " + newLimit + " requests per " +
+                     NANOSECONDS.toMillis(newInterval) + " ms");
+            limit = newLimit;
+            interval = newInterval;
+            tokens = Math.min(tokens, limit);
+        }
+
+        if (response.code() == 429) {
+            throttledResponses++;
+            concurrency = Math.max(1, concurrency / 2);
+            tokens = 0;
+            LOG.warn("Throttled by Crossref; allowing " + (int) concurrency + " requests in flight");
+        } else if (response.isSuccessful() && concurrency < maxConcurrency) {
+            concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+        }
+        notifyAll();
+    }
+
+    private static Integer parseLimit(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value an interval such as "1s"; a bare number is taken to be seconds
+     * @return the interval in ns, or null if it could not be understood
+     */
+    static Long parseInterval(String value) {
+        if (value == null) {
+            return null;
+        }
+        Matcher matcher = INTERVAL.matcher(value);
+        if (!matcher.matches()) {
+            return null;
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (amount <= 0) {
+            return null;
+        }
+        String unit = matcher.group(2) != null ? matcher.group(2) : "s";
+        switch (unit) {
+            case "ms":
+                return MILLISECONDS.toNanos(amount);
+            case "m":
+                return MINUTES.toNanos(amount);
+            case "h":
+                return HOURS.toNanos(amount);
+            default:
+                return SECONDS.toNanos(amount);
+        }
+    }
+
+    private static Response tooManyRequests(Request request) {
+        return new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(429)
+            .message("Too Many Requests")
+            .body(ResponseBody.create("Too many requests to Crossref", MediaType.get("text/plain")))
+            .build();
+    }
+}
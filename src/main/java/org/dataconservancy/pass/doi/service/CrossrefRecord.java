@@ -0,0 +1,352 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static javax.json.stream.JsonParser.Event.END_ARRAY;
+import static javax.json.stream.JsonParser.Event.KEY_NAME;
+import static javax.json.stream.JsonParser.Event.START_ARRAY;
+import static javax.json.stream.JsonParser.Event.START_OBJECT;
+import static javax.json.stream.JsonParser.Event.VALUE_STRING;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+
+/**
+ * A works record as returned by Crossref. The record keeps the bytes it was parsed from, so that it can be passed
+ * through to clients without being serialized again.
+ * <p>
+ * Only the fields needed to build a PASS journal are pulled out of the record, by a streaming parse which skips over
+ * everything else. Records for articles with thousands of references are therefore never built up as a tree of JSON
+ * objects.
+ */
+class CrossrefRecord {
+
+    private static final String XREF_ERROR = "error";
+    private static final String XREF_MESSAGE = "message";
+    private static final String XREF_TITLE = "container-title";
+    private static final String XREF_ISSN_TYPE_ARRAY = "issn-type";
+    private static final String XREF_ISSN_ARRAY = "ISSN";
+    private static final String XREF_ISSN_TYPE = "type";
+    private static final String XREF_ISSN_VALUE = "value";
+
+    private final byte[] raw;
+    private String error;
+    private boolean unavailable;
+    private boolean stale;
+    //validators sent by Crossref with the record, for asking whether it has changed
+    private String etag;
+    private String lastModified;
+
+    private String containerTitle;
+    private final List<TypedIssn> typedIssns = new ArrayList<>();
+    private final List<String> issns = new ArrayList<>();
+
+    private CrossrefRecord(byte[] raw, String error) {
+        this.raw = raw;
+        this.error = error;
+    }
+
+    /**
+     * @param raw the body of a Crossref response, as UTF-8 encoded JSON
+     * @return the record
+     * @throws JsonParsingException if the body is not a JSON object
+     */
+    static CrossrefRecord parse(byte[] raw) {
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(raw))) {
+            if (!parser.hasNext() || parser.next() != START_OBJECT) {
+                throw new JsonParsingException("Expected a JSON object", parser.getLocation());
+            }
+            return new CrossrefRecord(raw, null).readRecord(parser);
+        }
+    }
+
+    /**
+     * @param json a works record which has already been parsed
+     * @return the record
+     */
+    static CrossrefRecord fromJson(JsonObject json) {
+        return parse(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param message the error reported by Crossref in place of a record
+     * @return a record carrying only the error
+     */
+    static CrossrefRecord error(String message) {
+        return new CrossrefRecord(null, message);
+    }
+
+    /**
+     * @param reason why Crossref cannot be asked for the record for now
+     * @return a record carrying only the reason, marked as worth trying again later
+     */
+    static CrossrefRecord unavailable(String reason) {
+        CrossrefRecord record = error(reason);
+        record.unavailable = true;
+        return record;
+    }
+
+    /**
+     * @return a copy of this record, marked as stale: a record which has expired from the cache, served because a
+     * fresh one could not be had from Crossref
+     */
+    CrossrefRecord stale() {
+        CrossrefRecord record = new CrossrefRecord(raw, error);
+        record.containerTitle = containerTitle;
+        record.typedIssns.addAll(typedIssns);
+        record.issns.addAll(issns);
+        record.etag = etag;
+        record.lastModified = lastModified;
+        record.stale = true;
+        return record;
+    }
+
+    /**
+     * keep the validators Crossref sent with the record, before the record is shared
+     *
+     * @param etag         the ETag header of the response, or null
+     * @param lastModified the Last-Modified header of the response, or null
+     * @return this record
+     */
+    CrossrefRecord withValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * @return the ETag Crossref sent with the record, or null if there was none
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified date Crossref sent with the record, or null if there was none
+     */
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return whether Crossref can be asked if the record has changed, rather than for the record again
+     */
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * @return the record as a JSON object, or an object with a single error member if Crossref reported an error.
+     * The object is parsed anew on each call.
+     */
+    JsonObject getJson() {
+        if (raw == null) {
+            return Json.createObjectBuilder()
+                       .add(XREF_ERROR, error)
+                       .build();
+        }
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(raw))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * @return the error reported by Crossref, either in place of a record or as an error member of the record;
+     * null if there is none
+     */
+    String getError() {
+        return error;
+    }
+
+    /**
+     * @return whether Crossref returned something other than a record
+     */
+    boolean isError() {
+        return raw == null;
+    }
+
+    /**
+     * @return whether Crossref could not be asked for the record for now, as when its rate limit is exceeded
+     */
+    boolean isUnavailable() {
+        return unavailable;
+    }
+
+    /**
+     * @return whether this is an expired record, served in place of a fresh one
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return the first container title of the work, or null if there is none
+     */
+    String getContainerTitle() {
+        return containerTitle;
+    }
+
+    /**
+     * @return the typed issns of the work, as given in the issn-type array
+     */
+    List<TypedIssn> getTypedIssns() {
+        return Collections.unmodifiableList(typedIssns);
+    }
+
+    /**
+     * @return the issns of the work, as given in the ISSN array
+     */
+    List<String> getIssns() {
+        return Collections.unmodifiableList(issns);
+    }
+
+    /**
+     * @return the size of the record as returned by Crossref, in bytes
+     */
+    int size() {
+        return raw != null ? raw.length : 0;
+    }
+
+    /**
+     * write the record to a stream, exactly as Crossref returned it
+     *
+     * @param out the stream
+     * @throws IOException if the record could not be written
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (raw != null) {
+            out.write(raw);
+        } else {
+            out.write(getJson().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private CrossrefRecord readRecord(JsonParser parser) {
+        JsonParser.Event event;
+        while ((event = parser.next()) == KEY_NAME) {
+            String key = parser.getString();
+            event = parser.next();
+            if (XREF_MESSAGE.equals(key) && event == START_OBJECT) {
+                readMessage(parser);
+            } else if (XREF_ERROR.equals(key) && event == VALUE_STRING) {
+                error = parser.getString();
+            } else {
+                skip(parser, event);
+            }
+        }
+        //make sure the rest of the body is well formed
+        while (parser.hasNext()) {
+            parser.next();
+        }
+        return this;
+    }
+
+    private void readMessage(JsonParser parser) {
+        while (parser.next() == KEY_NAME) {
+            String key = parser.getString();
+            JsonParser.Event event = parser.next();
+            if (XREF_TITLE.equals(key) && event == START_ARRAY) {
+                boolean first = true;
+                while ((event = parser.next()) != END_ARRAY) {
+                    if (first && event == VALUE_STRING) {
+                        containerTitle = parser.getString();
+                    }
+                    first = false;
+                    skip(parser, event);
+                }
+            } else if (XREF_ISSN_ARRAY.equals(key) && event == START_ARRAY) {
+                while ((event = parser.next()) != END_ARRAY) {
+                    if (event == VALUE_STRING) {
+                        issns.add(parser.getString());
+                    }
+                    skip(parser, event);
+                }
+            } else if (XREF_ISSN_TYPE_ARRAY.equals(key) && event == START_ARRAY) {
+                while ((event = parser.next()) != END_ARRAY) {
+                    if (event == START_OBJECT) {
+                        readTypedIssn(parser);
+                    } else {
+                        skip(parser, event);
+                    }
+                }
+            } else {
+                skip(parser, event);
+            }
+        }
+    }
+
+    private void readTypedIssn(JsonParser parser) {
+        String type = null;
+        String value = null;
+        while (parser.next() == KEY_NAME) {
+            String key = parser.getString();
+            JsonParser.Event event = parser.next();
+            if (XREF_ISSN_TYPE.equals(key) && event == VALUE_STRING) {
+                type = parser.getString();
+            } else if (XREF_ISSN_VALUE.equals(key) && event == VALUE_STRING) {
+                value = parser.getString();
+            } else {
+                skip(parser, event);
+            }
+        }
+        if (value != null) {
+            typedIssns.add(new TypedIssn(type, value));
+        }
+    }
+
+    private static void skip(JsonParser parser, JsonParser.Event event) {
+        if (event == START_OBJECT) {
+            parser.skipObject();
+        } else if (event == START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * An issn along with its type, as given in the issn-type array of a Crossref record
+     */
+    static class TypedIssn {
+        private final String type;
+        private final String value;
+
+        TypedIssn(String type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        /**
+         * @return the Crossref issn type, or null if none was given
+         */
+        String getType() {
+            return type;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store of Crossref works records on local disk, so that what has been learned from Crossref survives a restart.
+ * <p>
+ * Records are appended to a log split into segment files, and found through an index of their locations held in
+ * memory. Each entry in the log carries a checksum, so that an entry cut short by a crash is detected when the store
+ * is opened; the segment is truncated at that point, and whatever came before it is kept.
+ * <p>
+ * Writing a record again for the same doi leaves the old entry in the log as garbage. When the garbage makes up
+ * more than half of the log, or the log grows beyond seven eighths of the size cap, the store is compacted in the
+ * background: the newest records are copied into new segments, up to three quarters of the size cap, while records
+ * carry on being read from the old segments and written to a segment after the new ones. Only once the copy is
+ * complete is the index switched over to the new segments and the old ones deleted; a compaction which fails leaves
+ * the store as it was, and the next is not tried until a backoff interval has passed, so that a full disk does not
+ * have every write start another copy. A record which would take the log beyond the size cap before a compaction
+ * finishes is not written.
+ */
+class CrossrefRecordStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CrossrefRecordStore.class);
+
+    private static final int MAGIC = 0x58524546;
+    //magic, checksum, timestamp, key length, value length
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final long maxSize;
+    private final long segmentSize;
+
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private long totalBytes;
+    private long liveBytes;
+
+    private long activeSegment;
+    private FileChannel active;
+
+    private long compactions;
+
+    //runs compactions, and is shut down with the store if the store made it
+    private final Executor compactor;
+    private final ExecutorService ownCompactor;
+    private boolean compactionScheduled;
+    private boolean closed;
+    //how long after a failed compaction the next may be tried, in ms
+    long compactionBackoff = MINUTES.toMillis(1);
+    //when the last compaction failed, by System.nanoTime(), if it did
+    private boolean compactionFailed;
+    private long compactionFailedAt;
+    //held by the compaction in progress, so that there is only one at a time
+    private final Object compactionLock = new Object();
+
+    /**
+     * open the store in a directory, creating the directory if need be, and recover the records in it
+     *
+     * @param directory   the directory
+     * @param maxSize     the size cap on the store, in bytes
+     * @param segmentSize the size at which a new segment is started, in bytes
+     * @throws IOException if the store could not be opened
+     */
+    CrossrefRecordStore(Path directory, long maxSize, long segmentSize) throws IOException {
+        this(directory, maxSize, segmentSize, null);
+    }
+
+    /**
+     * open the store in a directory, creating the directory if need be, and recover the records in it
+     *
+     * @param directory   the directory
+     * @param maxSize     the size cap on the store, in bytes
+     * @param segmentSize the size at which a new segment is started, in bytes
+     * @param compactor   the executor to run compactions on, or null for a thread of the store's own
+     * @throws IOException if the store could not be opened
+     */
+    CrossrefRecordStore(Path directory, long maxSize, long segmentSize, Executor compactor) throws IOException {
+        if (compactor == null) {
+            this.ownCompactor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "crossref-store-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.compactor = ownCompactor;
+        } else {
+            this.ownCompactor = null;
+            this.compactor = compactor;
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(HEADER_SIZE, segmentSize);
+        Files.createDirectories(directory);
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file in the Crossref record store: " + file);
+                }
+            }
+        }
+        ids.sort(Comparator.naturalOrder());
+        for (long id : ids) {
+            recover(id);
+        }
+        if (!ids.isEmpty() && segments.lastEntry().getValue().size() < this.segmentSize) {
+            //carry on appending to the last segment
+            activeSegment = segments.lastKey();
+            active = segments.lastEntry().getValue();
+        } else {
+            startSegment(ids.isEmpty() ? 0 : segments.lastKey() + 1);
+        }
+        LOG.info("Opened the Crossref record store in " + directory + " with " + index.size() + " records");
+    }
+
+    /**
+     * @param key the key, a normalized doi
+     * @return the record stored for the key, or null if there is none
+     * @throws IOException if the record could not be read
+     */
+    synchronized StoredRecord get(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+        if (!readFully(segments.get(location.segment), value, location.offset + HEADER_SIZE + location.keyLength)) {
+            throw new IOException("Unexpected end of segment " + location.segment);
+        }
+        return new StoredRecord(value.array(), location.written);
+    }
+
+    /**
+     * store a record, replacing any earlier record for the key
+     *
+     * @param key     the key, a normalized doi
+     * @param value   the record, as Crossref returned it
+     * @param written when the record was retrieved from Crossref, in ms since the epoch
+     * @throws IOException if the record could not be written
+     */
+    void put(String key, byte[] value, long written) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + keyBytes.length + value.length;
+        if (length > maxSize) {
+            return;
+        }
+        synchronized (this) {
+            if (totalBytes + length <= maxSize) {
+                if (active.size() > 0 && active.size() + length > segmentSize) {
+                    startSegment(activeSegment + 1);
+                }
+                long offset = active.size();
+                writeFully(active, entry(keyBytes, value, written), offset);
+                add(key, new Location(activeSegment, offset, keyBytes.length, value.length, written));
+            } else {
+                LOG.debug("Not storing the Crossref record for " + key + " until the store has been compacted");
+            }
+
+            if (compactionScheduled ||
+                (totalBytes <= maxSize / 8 * 7 && (totalBytes <= segmentSize || liveBytes >= totalBytes / 2))) {
+                return;
+            }
+            if (compactionFailed &&
+                System.nanoTime() - compactionFailedAt < MILLISECONDS.toNanos(compactionBackoff)) {
+                return;
+            }
+            compactionScheduled = true;
+        }
+        try {
+            compactor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * copy the newest records into new segments, up to three quarters of the size cap, then switch the index over
+     * to the new segments and delete the old ones. The store is only locked while the copy is planned and while the
+     * index is switched over, so that records can be read and written while the copy is made.
+     *
+     * @throws IOException if the store could not be compacted, in which case it is left as it was
+     */
+    void compact() throws IOException {
+        synchronized (compactionLock) {
+            Map<Long, FileChannel> old;
+            long lastOld;
+            long oldBytes = 0;
+            long kept = 0;
+            int dropped = 0;
+            Map<String, Location> compacted = new HashMap<>();
+            List<Map.Entry<String, Location>> copies = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                old = new TreeMap<>(segments);
+                for (FileChannel segment : old.values()) {
+                    oldBytes += segment.size();
+                }
+                lastOld = activeSegment;
+
+                //plan where each record kept goes, so that records written meanwhile go to a segment after them
+                List<Map.Entry<String, Location>> live = new ArrayList<>();
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    live.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+                live.sort((a, b) -> Long.compare(b.getValue().written, a.getValue().written));
+                long budget = maxSize / 4 * 3;
+                long segment = lastOld + 1;
+                long offset = 0;
+                for (Map.Entry<String, Location> entry : live) {
+                    Location location = entry.getValue();
+                    int length = location.length();
+                    if (kept + length > budget) {
+                        dropped++;
+                        continue;
+                    }
+                    kept += length;
+                    if (offset > 0 && offset + length > segmentSize) {
+                        segment++;
+                        offset = 0;
+                    }
+                    compacted.put(entry.getKey(), new Location(segment, offset, location.keyLength,
+                                                               location.valueLength, location.written));
+                    copies.add(entry);
+                    offset += length;
+                }
+                startSegment(compacted.isEmpty() ? lastOld + 1 : segment + 1);
+            }
+
+            Map<Long, FileChannel> copied = new TreeMap<>();
+            try {
+                for (Map.Entry<String, Location> entry : copies) {
+                    Location from = entry.getValue();
+                    Location to = compacted.get(entry.getKey());
+                    ByteBuffer buffer = ByteBuffer.allocate(from.length());
+                    if (!readFully(old.get(from.segment), buffer, from.offset)) {
+                        throw new IOException("Unexpected end of segment " + from.segment);
+                    }
+                    buffer.flip();
+                    FileChannel channel = copied.get(to.segment);
+                    if (channel == null) {
+                        channel = FileChannel.open(segmentFile(to.segment), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE);
+                        copied.put(to.segment, channel);
+                    }
+                    writeFully(channel, buffer, to.offset);
+                }
+            } catch (IOException e) {
+                for (Map.Entry<Long, FileChannel> partial : copied.entrySet()) {
+                    partial.getValue().close();
+                    Files.deleteIfExists(segmentFile(partial.getKey()));
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    for (FileChannel channel : copied.values()) {
+                        channel.close();
+                    }
+                    return;
+                }
+                //records written since the copy was planned are in later segments, and stay where they are
+                liveBytes = 0;
+                for (Iterator<Map.Entry<String, Location>> entries = index.entrySet().iterator();
+                     entries.hasNext(); ) {
+                    Map.Entry<String, Location> entry = entries.next();
+                    if (entry.getValue().segment <= lastOld) {
+                        Location location = compacted.get(entry.getKey());
+                        if (location == null) {
+                            entries.remove();
+                            continue;
+                        }
+                        entry.setValue(location);
+                    }
+                    liveBytes += entry.getValue().length();
+                }
+                totalBytes += kept - oldBytes;
+                segments.putAll(copied);
+                for (Map.Entry<Long, FileChannel> segmentEntry : old.entrySet()) {
+                    segmentEntry.getValue().close();
+                    segments.remove(segmentEntry.getKey());
+                    Files.deleteIfExists(segmentFile(segmentEntry.getKey()));
+                }
+                compactions++;
+                LOG.info("Compacted the Crossref record store to " + index.size() + " records in " + totalBytes +
+                         " bytes, dropping " + dropped + " of the oldest");
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+            synchronized (this) {
+                compactionFailed = false;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                compactionFailed = true;
+                compactionFailedAt = System.nanoTime();
+                if (!closed) {
+                    LOG.warn("Could not compact the Crossref record store in " + directory + "; not trying again for " +
+                             compactionBackoff + " ms", e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * @return the number of records in the store
+     */
+    synchronized int count() {
+        return index.size();
+    }
+
+    /**
+     * @return the size of the log, including garbage, in bytes
+     */
+    synchronized long size() {
+        return totalBytes;
+    }
+
+    synchronized long getCompactions() {
+        return compactions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (ownCompactor != null) {
+            ownCompactor.shutdownNow();
+        }
+        for (FileChannel segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    /**
+     * read the entries of a segment into the index, truncating the segment at the first entry which is incomplete
+     * or fails its checksum
+     */
+    private void recover(long id) throws IOException {
+        FileChannel segment = FileChannel.open(segmentFile(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(id, segment);
+        long size = segment.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset < size) {
+            header.clear();
+            if (!readFully(segment, header, offset)) {
+                break;
+            }
+            header.flip();
+            int magic = header.getInt();
+            int checksum = header.getInt();
+            long written = header.getLong();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            if (magic != MAGIC || keyLength < 0 || valueLength < 0 ||
+                offset + HEADER_SIZE + keyLength + valueLength > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            if (!readFully(segment, body, offset + HEADER_SIZE)) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            header.position(8);
+            crc.update(header);
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            String key = new String(body.array(), 0, keyLength, StandardCharsets.UTF_8);
+            add(key, new Location(id, offset, keyLength, valueLength, written));
+            offset += HEADER_SIZE + keyLength + valueLength;
+        }
+        if (offset < size) {
+            LOG.warn("Truncating damaged segment " + segmentFile(id) + " from " + size + " to " + offset + " bytes");
+            segment.truncate(offset);
+        }
+    }
+
+    private void add(String key, Location location) {
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.length();
+        }
+        totalBytes += location.length();
+        liveBytes += location.length();
+    }
+
+    private void startSegment(long id) throws IOException {
+        activeSegment = id;
+        active = FileChannel.open(segmentFile(id), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                  StandardOpenOption.WRITE);
+        segments.put(id, active);
+    }
+
+    private Path segmentFile(long id) {
+        return directory.resolve(String.format("%010d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static ByteBuffer entry(byte[] key, byte[] value, long written) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(0);
+        buffer.putLong(written);
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.capacity() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * where an entry is in the log
+     */
+    private static class Location {
+        private final long segment;
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength;
+        private final long written;
+
+        private Location(long segment, long offset, int keyLength, int valueLength, long written) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.written = written;
+        }
+
+        private int length() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * a record read back from the store, with the time it was retrieved from Crossref
+     */
+    static class StoredRecord {
+        private final byte[] value;
+        private final long written;
+
+        StoredRecord(byte[] value, long written) {
+            this.value = value;
+            this.written = written;
+        }
+
+        byte[] getValue() {
+            return value;
+        }
+
+        /**
+         * @return when the record was retrieved from Crossref, in ms since the epoch
+         */
+        long getWritten() {
+            return written;
+        }
+    }
+}
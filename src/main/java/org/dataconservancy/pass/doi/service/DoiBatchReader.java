@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+
+/**
+ * Reads the DOIs of a batch request one at a time, so that a large batch never has to be held in memory. The DOIs
+ * are given either as a JSON array of strings, or as plain text with one DOI per line.
+ */
+class DoiBatchReader implements Closeable {
+
+    private final BufferedReader lines;
+    private final JsonParser parser;
+
+    /**
+     * @param reader the body of the batch request
+     * @param json   whether the body is a JSON array, rather than plain text
+     * @throws JsonException if the body is JSON, but not an array
+     */
+    DoiBatchReader(Reader reader, boolean json) {
+        if (json) {
+            this.lines = null;
+            this.parser = Json.createParser(reader);
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) {
+                throw new JsonException("Expected a JSON array of DOIs");
+            }
+        } else {
+            this.lines = new BufferedReader(reader);
+            this.parser = null;
+        }
+    }
+
+    /**
+     * @return the next doi in the batch, or null at the end of the batch
+     * @throws IOException   if the batch could not be read
+     * @throws JsonException if a JSON batch is malformed
+     */
+    String next() throws IOException {
+        if (parser != null) {
+            if (!parser.hasNext()) {
+                throw new JsonException("Unexpected end of the JSON array of DOIs");
+            }
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                return null;
+            } else if (event == JsonParser.Event.VALUE_STRING) {
+                return parser.getString();
+            }
+            throw new JsonException("Expected a DOI string in the JSON array of DOIs, found " + event);
+        }
+
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (parser != null) {
+            parser.close();
+        } else {
+            lines.close();
+        }
+    }
+}
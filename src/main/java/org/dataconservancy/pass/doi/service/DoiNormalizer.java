@@ -0,0 +1,182 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+/**
+ * Validates DOIs as supplied by clients, and reduces them to a canonical form, so that equivalent DOIs are looked up
+ * and cached as one.
+ * <p>
+ * Anything up to and including "doi.org/", as in a resolver URL, is dropped, as is a leading "doi:". What is left
+ * must be a Crossref DOI: "10.", four to nine digits, "/", and one or more of the characters
+ * {@code -._;()/:}, letters and digits. Characters may be percent-encoded. The canonical form is percent-decoded and
+ * lower-cased, since DOIs are case insensitive.
+ * <p>
+ * Validation is a single scan of the characters, which allocates nothing. A DOI which is already canonical is
+ * returned as the string it was given; otherwise the canonical form is written out in a second scan.
+ */
+final class DoiNormalizer {
+
+    private static final String RESOLVER = "doi.org/";
+    private static final String SCHEME = "doi:";
+
+    //the ascii characters allowed in the suffix of a doi
+    private static final boolean[] SUFFIX_CHARS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            SUFFIX_CHARS[c] = true;
+            SUFFIX_CHARS[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            SUFFIX_CHARS[c] = true;
+        }
+        for (char c : "-._;()/:".toCharArray()) {
+            SUFFIX_CHARS[c] = true;
+        }
+    }
+
+    private DoiNormalizer() {
+    }
+
+    /**
+     * @param doi the doi as supplied by a client
+     * @return the canonical doi, or null if the doi is not valid
+     */
+    static String normalize(String doi) {
+        if (doi == null) {
+            return null;
+        }
+        int start = start(doi);
+        int end = doi.length();
+
+        //validate, noting whether anything needs to be decoded or lower-cased
+        boolean rewrite = false;
+        int length = 0;
+        int state = 0;
+        int registrantDigits = 0;
+        for (int i = start; i < end; length++) {
+            char c = doi.charAt(i);
+            if (c == '%') {
+                int decoded = decode(doi, i);
+                if (decoded < 0) {
+                    return null;
+                }
+                c = (char) decoded;
+                i += 3;
+                rewrite = true;
+            } else {
+                i++;
+            }
+            switch (state) {
+                case 0:
+                    if (c != '1') {
+                        return null;
+                    }
+                    state = 1;
+                    break;
+                case 1:
+                    if (c != '0') {
+                        return null;
+                    }
+                    state = 2;
+                    break;
+                case 2:
+                    if (c != '.') {
+                        return null;
+                    }
+                    state = 3;
+                    break;
+                case 3:
+                    if (c >= '0' && c <= '9') {
+                        if (++registrantDigits > 9) {
+                            return null;
+                        }
+                    } else if (c == '/' && registrantDigits >= 4) {
+                        state = 4;
+                    } else {
+                        return null;
+                    }
+                    break;
+                default:
+                    if (!isSuffixChar(c)) {
+                        return null;
+                    }
+                    if (c >= 'A' && c <= 'Z') {
+                        rewrite = true;
+                    }
+                    state = 5;
+            }
+        }
+        if (state != 5) {
+            return null;
+        }
+
+        if (!rewrite) {
+            return start == 0 ? doi : doi.substring(start);
+        }
+        char[] canonical = new char[length];
+        for (int i = start, j = 0; i < end; j++) {
+            char c = doi.charAt(i);
+            if (c == '%') {
+                c = (char) decode(doi, i);
+                i += 3;
+            } else {
+                i++;
+            }
+            canonical[j] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(canonical);
+    }
+
+    /**
+     * @return the index at which the doi proper starts, after any resolver URL or doi: prefix
+     */
+    private static int start(String doi) {
+        int start = 0;
+        //only look for the resolver where it would end, at a slash
+        for (int i = RESOLVER.length() - 1; i < doi.length(); i++) {
+            if (doi.charAt(i) == '/' &&
+                doi.regionMatches(true, i + 1 - RESOLVER.length(), RESOLVER, 0, RESOLVER.length())) {
+                start = i + 1;
+                break;
+            }
+        }
+        if (doi.regionMatches(true, start, SCHEME, 0, SCHEME.length())) {
+            start += SCHEME.length();
+        }
+        return start;
+    }
+
+    /**
+     * @return the character encoded by the percent escape at index i, or -1 if it is not a valid escape
+     */
+    private static int decode(String doi, int i) {
+        if (i + 2 >= doi.length()) {
+            return -1;
+        }
+        int high = Character.digit(doi.charAt(i + 1), 16);
+        int low = Character.digit(doi.charAt(i + 2), 16);
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+        return high << 4 | low;
+    }
+
+    private static boolean isSuffixChar(char c) {
+        return c < SUFFIX_CHARS.length && SUFFIX_CHARS[c];
+    }
+}
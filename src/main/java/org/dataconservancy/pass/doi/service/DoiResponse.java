@@ -0,0 +1,200 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The outcome of resolving a DOI: the status code and JSON body to be returned to the caller. Instances are
+ * immutable, so a single result may be handed to every request waiting on the same DOI.
+ * <p>
+ * The body is written straight to the response stream. A successful result passes the Crossref record through
+ * as the bytes Crossref sent, rather than building and serializing a JSON object around it. A response built from a
+ * stale Crossref record says so with a "stale" member.
+ */
+class DoiResponse {
+
+    private final int status;
+    private final JsonObject body;
+
+    private final String journalId;
+    private final long journalVersion;
+    private final CrossrefRecord record;
+
+    DoiResponse(int status, JsonObject body) {
+        this.status = status;
+        this.body = body;
+        this.journalId = null;
+        this.journalVersion = 0;
+        this.record = null;
+    }
+
+    private DoiResponse(String journalId, long journalVersion, CrossrefRecord record) {
+        this.status = 200;
+        this.body = null;
+        this.journalId = journalId;
+        this.journalVersion = journalVersion;
+        this.record = record;
+    }
+
+    /**
+     * @param status  the status code
+     * @param message the error message
+     * @return a response carrying only an error message
+     */
+    static DoiResponse error(int status, String message) {
+        return new DoiResponse(status, Json.createObjectBuilder()
+                                           .add("error", message)
+                                           .build());
+    }
+
+    /**
+     * @param journalId      the externalized id of the PASS journal
+     * @param journalVersion the {@link JournalVersions} stamp taken before the journal was read
+     * @param record         the Crossref record for the doi
+     * @return a successful response, carrying the journal id and the Crossref record
+     */
+    static DoiResponse journal(String journalId, long journalVersion, CrossrefRecord record) {
+        return new DoiResponse(journalId, journalVersion, record);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the externalized id of the PASS journal, or null if this is not a successful response
+     */
+    String getJournalId() {
+        return journalId;
+    }
+
+    /**
+     * @return the {@link JournalVersions} stamp taken before the journal was read
+     */
+    long getJournalVersion() {
+        return journalVersion;
+    }
+
+    /**
+     * @return the body as a JSON object. This is built on demand for a successful response, and is not what is
+     * used to write the response.
+     */
+    JsonObject getBody() {
+        if (body != null) {
+            return body;
+        }
+        JsonObjectBuilder builder = Json.createObjectBuilder()
+                                        .add("journal-id", journalId)
+                                        .add("crossref", record.getJson());
+        if (record.isStale()) {
+            builder.add("stale", true);
+        }
+        return builder.build();
+    }
+
+    /**
+     * write this response to the servlet response
+     *
+     * @param response the servlet response
+     * @throws IOException if the body could not be written
+     */
+    void write(HttpServletResponse response) throws IOException {
+        response.setStatus(status);
+        try (OutputStream out = response.getOutputStream()) {
+            write(out);
+        }
+    }
+
+    /**
+     * write the body of this response to a stream
+     *
+     * @param out the stream
+     * @throws IOException if the body could not be written
+     */
+    void write(OutputStream out) throws IOException {
+        if (record != null) {
+            out.write('{');
+            writeJournalMembers(out);
+            out.write('}');
+        } else {
+            JsonGenerator generator = Json.createGenerator(out);
+            generator.write(body);
+            generator.flush();
+        }
+    }
+
+    /**
+     * write this response as one line of a batch response: the body, along with the doi and the status code
+     * which would have been returned for the doi on its own
+     *
+     * @param doi the doi as supplied by the client
+     * @param out the batch response stream
+     * @throws IOException if the line could not be written
+     */
+    void writeItem(String doi, OutputStream out) throws IOException {
+        if (record != null) {
+            out.write('{');
+            writeString(out, "\"doi\":" + quote(doi) + ",\"status\":" + status + ",");
+            writeJournalMembers(out);
+            out.write('}');
+        } else {
+            JsonGenerator generator = Json.createGenerator(out);
+            generator.writeStartObject();
+            if (doi != null) {
+                generator.write("doi", doi);
+            } else {
+                generator.writeNull("doi");
+            }
+            generator.write("status", status);
+            for (Map.Entry<String, JsonValue> member : body.entrySet()) {
+                generator.write(member.getKey(), member.getValue());
+            }
+            generator.writeEnd();
+            generator.flush();
+        }
+        out.write('\n');
+    }
+
+    private void writeJournalMembers(OutputStream out) throws IOException {
+        if (record.isStale()) {
+            writeString(out, "\"stale\":true,");
+        }
+        writeString(out, "\"journal-id\":" + quote(journalId) + ",\"crossref\":");
+        record.writeTo(out);
+    }
+
+    private static void writeString(OutputStream out, String json) throws IOException {
+        out.write(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the string as a JSON string literal, or null
+     */
+    private static String quote(String value) {
+        return value == null ? "null" : Json.createValue(value).toString();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Finds PASS journals with a single search of the PASS Elasticsearch index, rather than a query for the name and
+ * one for each ISSN. The search is a bool query with a should clause for the name and for each ISSN, each named by
+ * its position, so that every hit says which of them it matched. From that the journals found for each clause are
+ * recovered, and ranked just as the separate queries would be.
+ * <p>
+ * Names and ISSNs already in the journal index are not searched for, and the journals found for the others are
+ * loaded into the index, unless there were more hits than the search returned.
+ */
+class ElasticsearchJournalFinder implements JournalFinder {
+
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    //fields of journals in the PASS index
+    private static final String TYPE = "@type";
+    private static final String ID = "@id";
+    private static final String NAME = "name";
+    private static final String ISSNS = "issns";
+    private static final String JOURNAL = "Journal";
+
+    private final OkHttpClient client;
+    private final HttpUrl searchUrl;
+    private final int limit;
+    private final JournalIndex journalIndex;
+
+    /**
+     * @param client       the client used to search, whose timeouts bound the search
+     * @param indexUrl     the URL of the PASS index, such as {@code http://elasticsearch:9200/pass/}
+     * @param limit        the most hits returned by a search
+     * @param journalIndex the index consulted before searching, and loaded with what is found
+     */
+    ElasticsearchJournalFinder(OkHttpClient client, String indexUrl, int limit, JournalIndex journalIndex) {
+        this.client = client;
+        this.searchUrl = HttpUrl.get(indexUrl.endsWith("/") ? indexUrl : indexUrl + "/").resolve("_search");
+        this.limit = limit;
+        this.journalIndex = journalIndex;
+    }
+
+    @Override
+    public URI find(String name, List<String> issns) throws IOException {
+        //the journals found for the name, then for each issn; null for those to be searched for
+        List<Set<URI>> lookups = new ArrayList<>(issns.size() + 1);
+        lookups.add(name == null ? Collections.emptySet() : journalIndex.cachedByName(name));
+        for (String issn : issns) {
+            //an invalid issn names no journal, so is not searched for
+            lookups.add(Issn.parse(issn) == Issn.INVALID ? Collections.emptySet() : journalIndex.cachedByIssn(issn));
+        }
+        if (lookups.contains(null)) {
+            search(name, issns, lookups);
+        }
+        return JournalFinder.bestMatch(lookups);
+    }
+
+    /**
+     * search for the name and issns which have no journals yet, filling in the journals found for each
+     */
+    private void search(String name, List<String> issns, List<Set<URI>> lookups) throws IOException {
+        JsonArrayBuilder should = Json.createArrayBuilder();
+        boolean[] searched = new boolean[lookups.size()];
+        for (int i = 0; i < lookups.size(); i++) {
+            if (lookups.get(i) == null) {
+                //issns are searched for in the canonical form the journal index keys them by
+                String value = i == 0 ? name : Issn.toString(Issn.parse(issns.get(i - 1)));
+                should.add(term(i == 0 ? NAME : ISSNS, value, String.valueOf(i)));
+                lookups.set(i, new HashSet<>());
+                searched[i] = true;
+            }
+        }
+        JsonObject query = Json.createObjectBuilder()
+            .add("size", limit)
+            .add("_source", Json.createArrayBuilder().add(ID))
+            .add("query", Json.createObjectBuilder()
+                .add("bool", Json.createObjectBuilder()
+                    .add("filter", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("term", Json.createObjectBuilder().add(TYPE, JOURNAL))))
+                    .add("should", should)
+                    .add("minimum_should_match", 1)))
+            .build();
+
+        Request request = new Request.Builder()
+            .url(searchUrl)
+            .post(RequestBody.create(query.toString(), JSON_TYPE))
+            .build();
+        boolean complete;
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Elasticsearch returned " + response.code() + " for a journal search");
+            }
+            try (InputStream body = response.body().byteStream(); JsonReader reader = Json.createReader(body)) {
+                JsonObject hits = reader.readObject().getJsonObject("hits");
+                int returned = 0;
+                for (JsonValue value : hits.getJsonArray("hits")) {
+                    JsonObject hit = (JsonObject) value;
+                    URI uri = URI.create(hit.getJsonObject("_source").getString(ID));
+                    for (JsonString matched : hit.getJsonArray("matched_queries").getValuesAs(JsonString.class)) {
+                        lookups.get(Integer.parseInt(matched.getString())).add(uri);
+                    }
+                    returned++;
+                }
+                complete = total(hits) <= returned;
+            }
+        } catch (JsonException | ClassCastException | NullPointerException | IllegalArgumentException e) {
+            throw new IOException("Could not read the response to a journal search", e);
+        }
+
+        //the index must hold every journal for a name or issn, so entries are only loaded from a complete search
+        if (complete) {
+            for (int i = 0; i < lookups.size(); i++) {
+                if (searched[i] && i == 0) {
+                    journalIndex.loadName(name, lookups.get(i));
+                } else if (searched[i]) {
+                    journalIndex.loadIssn(issns.get(i - 1), lookups.get(i));
+                }
+            }
+        }
+    }
+
+    private static JsonObjectBuilder term(String field, String value, String queryName) {
+        return Json.createObjectBuilder()
+                   .add("term", Json.createObjectBuilder()
+                       .add(field, Json.createObjectBuilder()
+                           .add("value", value)
+                           .add("_name", queryName)));
+    }
+
+    /**
+     * @return the total number of hits, given as a number before Elasticsearch 7 and as an object since
+     */
+    private static long total(JsonObject hits) {
+        JsonValue total = hits.get("total");
+        if (total instanceof JsonNumber) {
+            return ((JsonNumber) total).longValue();
+        }
+        return ((JsonObject) total).getJsonNumber("value").longValue();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A size-bounded in-memory cache whose entries expire a fixed time after they are written. When the cache is full,
+ * the least recently used entry is evicted to make room for a new one. All operations are synchronized on the cache,
+ * which is adequate for the small, cheap critical sections involved here.
+ * <p>
+ * An expired entry may be kept for a while longer, so that it can be used stale when a fresh value cannot be had.
+ * <p>
+ * Each entry counts the times it has been read, so that entries in demand can be refreshed before they expire; see
+ * {@link #claimRefresh(Object, long, int)}.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class ExpiringLruCache<K, V> {
+
+    private final int capacity;
+    private final long ttl;
+    private final long staleTtl;
+    private final LongSupplier clock;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    /**
+     * @param capacity the maximum number of entries held; a capacity of zero disables the cache
+     * @param ttl      the time to live of an entry, in milliseconds
+     */
+    ExpiringLruCache(int capacity, long ttl) {
+        this(capacity, ttl, 0);
+    }
+
+    /**
+     * @param capacity the maximum number of entries held; a capacity of zero disables the cache
+     * @param ttl      the time to live of an entry, in milliseconds
+     * @param staleTtl how long an entry is kept after it has expired, for {@link #getStale(Object)}, in
+     *                 milliseconds
+     */
+    ExpiringLruCache(int capacity, long ttl, long staleTtl) {
+        this(capacity, ttl, staleTtl, System::currentTimeMillis);
+    }
+
+    ExpiringLruCache(int capacity, long ttl, LongSupplier clock) {
+        this(capacity, ttl, 0, clock);
+    }
+
+    ExpiringLruCache(int capacity, long ttl, long staleTtl, LongSupplier clock) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.staleTtl = Math.max(0, staleTtl);
+        this.clock = clock;
+        //access ordered, so that the eldest entry is always the least recently used
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > ExpiringLruCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the live value for a key
+     *
+     * @param key the key
+     * @return the value, or null if the key is absent or its entry has expired
+     */
+    synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (entry.expires <= now) {
+            if (entry.expires + staleTtl <= now) {
+                entries.remove(key);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.reads++;
+        return entry.value;
+    }
+
+    /**
+     * Claim the refresh of a live entry which has been read often and will soon expire, so that a fresh value can
+     * be put before it does. Only one claim is granted for an entry, until the entry is replaced or the claim is
+     * given up with {@link #abandonRefresh(Object)}.
+     *
+     * @param key      the key
+     * @param ahead    how long before its expiry an entry may be refreshed, in milliseconds
+     * @param minReads the number of times the entry must have been read since it was written
+     * @return whether the caller should refresh the entry
+     */
+    synchronized boolean claimRefresh(K key, long ahead, int minReads) {
+        CacheEntry<V> entry = entries.get(key);
+        long now = clock.getAsLong();
+        if (entry == null || entry.refreshing || entry.reads < minReads || entry.expires <= now ||
+            entry.expires - now > ahead) {
+            return false;
+        }
+        entry.refreshing = true;
+        return true;
+    }
+
+    /**
+     * Give up a claim on the refresh of an entry, so that a later read may claim it again
+     *
+     * @param key the key
+     */
+    synchronized void abandonRefresh(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null) {
+            entry.refreshing = false;
+        }
+    }
+
+    /**
+     * Get the value for a key, even if its entry has expired, so long as it is still within the stale time to
+     * live. This is for falling back on when a fresh value cannot be had, and does not count as a hit or a miss.
+     *
+     * @param key the key
+     * @return the value, or null if the key is absent or its entry is too old even to be used stale
+     */
+    synchronized V getStale(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires + staleTtl <= clock.getAsLong()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Store a value, replacing any existing entry for the key and restarting its time to live
+     *
+     * @param key   the key
+     * @param value the value, must not be null
+     */
+    synchronized void put(K key, V value) {
+        if (capacity <= 0 || ttl <= 0) {
+            return;
+        }
+        entries.put(key, new CacheEntry<>(value, clock.getAsLong() + ttl));
+    }
+
+    /**
+     * Replace the value of a live entry, leaving its expiry time as it was. Nothing is done if the key is absent
+     * or its entry has expired.
+     *
+     * @param key    the key
+     * @param update computes the new value from the current one
+     */
+    synchronized void update(K key, UnaryOperator<V> update) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null && entry.expires > clock.getAsLong()) {
+            entries.put(key, new CacheEntry<>(update.apply(entry.value), entry.expires));
+        }
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class CacheEntry<V> {
+        private final V value;
+        private final long expires;
+        //guarded by the cache
+        private int reads;
+        private boolean refreshing;
+
+        private CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import org.dataconservancy.pass.doi.service.PassDoiServlet.IssnType;
+
+/**
+ * ISSNs packed into a long, so that they can be compared and hashed without parsing strings, and held in the
+ * journal index at a fraction of the size of their strings. The low four bits hold the check character, 0 to 10
+ * for X; the next 24 the first seven digits; and the two above those the PASS type of the ISSN, if any.
+ * <p>
+ * Only ISSNs whose check character is right, and whose type is one PASS uses, can be packed. Anything else is
+ * {@link #INVALID}; such an ISSN cannot name a journal, and is not worth asking PASS about.
+ */
+final class Issn {
+
+    /**
+     * the result of parsing something which is not a valid ISSN
+     */
+    static final long INVALID = -1;
+
+    private static final int UNTYPED = 0;
+    private static final int PRINT = 1;
+    private static final int ONLINE = 2;
+
+    private static final int DIGITS_SHIFT = 4;
+    private static final int TYPE_SHIFT = 28;
+    private static final long VALUE_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private Issn() {
+    }
+
+    /**
+     * @param typedIssn an issn in the type:value format used by PASS, such as {@code Print:1179-5468}
+     * @return the packed issn, or {@link #INVALID}
+     */
+    static long parse(String typedIssn) {
+        if (typedIssn == null) {
+            return INVALID;
+        }
+        int colon = typedIssn.indexOf(':');
+        if (colon < 0) {
+            return INVALID;
+        }
+        return parse(typedIssn.substring(0, colon), typedIssn.substring(colon + 1));
+    }
+
+    /**
+     * @param passType the PASS type of the issn, or the empty string for an untyped issn
+     * @param value    the issn, such as {@code 1179-5468}
+     * @return the packed issn, or {@link #INVALID}
+     */
+    static long parse(String passType, String value) {
+        int type;
+        if (passType.isEmpty()) {
+            type = UNTYPED;
+        } else if (IssnType.PRINT.getPassTypeString().equals(passType)) {
+            type = PRINT;
+        } else if (IssnType.ELECTRONIC.getPassTypeString().equals(passType)) {
+            type = ONLINE;
+        } else {
+            return INVALID;
+        }
+
+        String issn = value.trim();
+        if (issn.length() != 9 || issn.charAt(4) != '-') {
+            return INVALID;
+        }
+        int digits = 0;
+        int sum = 0;
+        for (int i = 0, weight = 8; i < 8; i++) {
+            if (i == 4) {
+                continue;
+            }
+            char c = issn.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            digits = digits * 10 + (c - '0');
+            sum += (c - '0') * weight--;
+        }
+        char c = issn.charAt(8);
+        int check = c == 'X' || c == 'x' ? 10 : c >= '0' && c <= '9' ? c - '0' : -1;
+        //the weighted sum of the digits and the check character is a multiple of 11
+        if (check < 0 || (sum + check) % 11 != 0) {
+            return INVALID;
+        }
+        return (long) type << TYPE_SHIFT | (long) digits << DIGITS_SHIFT | check;
+    }
+
+    /**
+     * @param digits the first seven digits of an issn, as a number
+     * @return the untyped issn with those digits and the check character they call for
+     */
+    static long of(int digits) {
+        if (digits < 0 || digits > 9999999) {
+            throw new IllegalArgumentException("An ISSN has seven digits before its check character: " + digits);
+        }
+        int sum = 0;
+        for (int rest = digits, weight = 2; weight <= 8; rest /= 10, weight++) {
+            sum += rest % 10 * weight;
+        }
+        return (long) digits << DIGITS_SHIFT | (11 - sum % 11) % 11;
+    }
+
+    /**
+     * @param value an issn, such as {@code 1179-5468}
+     * @return whether the issn has the right check character
+     */
+    static boolean isValid(String value) {
+        return value != null && parse("", value) != INVALID;
+    }
+
+    /**
+     * @param issn a packed issn
+     * @return the same issn without its type, so that one ISSN given with different types packs the same
+     */
+    static long untyped(long issn) {
+        return issn & VALUE_MASK;
+    }
+
+    /**
+     * @param issn a packed issn
+     * @return the issn in the type:value format used by PASS
+     */
+    static String toString(long issn) {
+        int type = (int) (issn >>> TYPE_SHIFT);
+        String value = value(issn);
+        if (type == PRINT) {
+            return IssnType.PRINT.getPassTypeString() + ":" + value;
+        } else if (type == ONLINE) {
+            return IssnType.ELECTRONIC.getPassTypeString() + ":" + value;
+        }
+        return ":" + value;
+    }
+
+    /**
+     * @param issn a packed issn
+     * @return the issn without its type, such as {@code 1179-5468}
+     */
+    static String value(long issn) {
+        int digits = (int) ((issn & VALUE_MASK) >>> DIGITS_SHIFT);
+        int check = (int) (issn & ((1 << DIGITS_SHIFT) - 1));
+        String number = Integer.toString(digits + 10000000).substring(1);
+        return number.substring(0, 4) + "-" + number.substring(4) + (check == 10 ? 'X' : (char) ('0' + check));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the PASS journal best matching a journal name and ISSNs. The service's own finder looks the name and each
+ * ISSN up separately, through the journal index; others may get the same answer some other way, but must rank the
+ * candidates with {@link #bestMatch(List)}.
+ */
+interface JournalFinder {
+
+    /**
+     * @param name  the name of the journal to be found, or null
+     * @param issns the typed issns of the journal, in the type:value format used by PASS
+     * @return the URI of the best match, or null if nothing matches
+     * @throws IOException if the journals could not be searched; the caller may fall back on another finder
+     */
+    URI find(String name, List<String> issns) throws IOException;
+
+    /**
+     * Pick the best match from the journals found for a name and each of a number of ISSNs. Each journal scores a
+     * point for each lookup which found it, and the highest scoring journal is the best match.
+     *
+     * @param lookups the journals found by each lookup; null for a lookup which did not complete
+     * @return the URI of the best match, or null if nothing matches
+     */
+    static URI bestMatch(List<Set<URI>> lookups) {
+        Map<URI, Integer> uriScores = new HashMap<>();
+
+        for (Set<URI> uriSet : lookups) {
+            if (uriSet != null) {
+                for (URI uri : uriSet) {
+                    Integer i = uriScores.putIfAbsent(uri, 1);
+                    if (i != null) {
+                        uriScores.put(uri, i + 1);
+                    }
+                }
+            }
+        }
+
+        if (uriScores.size() > 0) {
+            // we have matches, pick the best one
+            Integer highScore = Collections.max(uriScores.values());
+
+            int minimumQualifyingScore = 1;
+            // with so little to go on, we may realistically get just one hit
+
+            List<URI> sortedUris = new ArrayList<>();
+
+            for (int i = highScore; i >= minimumQualifyingScore; i--) {
+                for (URI uri : uriScores.keySet()) {
+                    if (uriScores.get(uri) == i) {
+                        sortedUris.add(uri);
+                    }
+                }
+            }
+
+            if (sortedUris.size() > 0) {
+                // there are matching journals
+                // return the best match
+                return sortedUris.get(0);
+            }
+        }
+
+        // nothing matches, create a new journal
+        return null;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index from journal names and ISSNs to the URIs of the PASS journals carrying them. Entries are
+ * loaded from PASS the first time they are asked for, and are dropped after a fixed time to live, after which they
+ * are loaded again. Journals created or updated through this service are added to any entries already loaded, so
+ * that the index does not need to wait for PASS to catch up with our own changes.
+ * <p>
+ * Each entry holds what PASS returns when asked for journals with exactly that attribute value. Names are therefore
+ * kept as given, since PASS matches them exactly. ISSNs are held packed, as {@link Issn} longs, and PASS is asked for
+ * the ISSN in the canonical form the packed value stands for, so that ISSNs written differently but packing the same
+ * share one entry with one answer. An ISSN which cannot be packed is not valid, so no journal is looked up for it.
+ */
+class JournalIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalIndex.class);
+
+    private static final String NAME = "name";
+    private static final String ISSNS = "issns";
+    //journals read between progress reports while preloading
+    private static final int PROGRESS_INTERVAL = 5000;
+
+    private final PassClient passClient;
+    private final int capacity;
+
+    private final ExpiringLruCache<String, Set<URI>> names;
+    private final ExpiringLruCache<Long, Set<URI>> issns;
+
+    /**
+     * @param passClient the client used to load entries
+     * @param capacity   the maximum number of names, and of ISSNs, held
+     * @param ttl        the time to live of an entry, in milliseconds
+     */
+    JournalIndex(PassClient passClient, int capacity, long ttl) {
+        this.passClient = passClient;
+        this.capacity = capacity;
+        this.names = new ExpiringLruCache<>(capacity, ttl);
+        this.issns = new ExpiringLruCache<>(capacity, ttl);
+    }
+
+    /**
+     * @param name the journal name
+     * @return the URIs of journals with this name
+     */
+    Set<URI> findByName(String name) {
+        return find(names, NAME, name, name);
+    }
+
+    /**
+     * @param issn the typed issn, in the type:value format used by PASS
+     * @return the URIs of journals with this issn, in the form {@link Issn#toString(long)} gives it
+     */
+    Set<URI> findByIssn(String issn) {
+        long key = Issn.parse(issn);
+        if (key == Issn.INVALID) {
+            return Collections.emptySet();
+        }
+        return find(issns, ISSNS, Issn.toString(key), key);
+    }
+
+    /**
+     * @param name the journal name
+     * @return the URIs of journals with this name if the index has them loaded, otherwise null
+     */
+    Set<URI> cachedByName(String name) {
+        return name == null ? null : names.get(name);
+    }
+
+    /**
+     * @param issn the typed issn, in the type:value format used by PASS
+     * @return the URIs of journals with this issn if the index has them loaded, otherwise null
+     */
+    Set<URI> cachedByIssn(String issn) {
+        long key = Issn.parse(issn);
+        return key == Issn.INVALID ? null : issns.get(key);
+    }
+
+    /**
+     * Load the entry for a name with journals found some other way than by {@link #findByName(String)}
+     *
+     * @param name the journal name, exactly as PASS was asked for it
+     * @param uris the URIs of every journal with this name
+     */
+    void loadName(String name, Set<URI> uris) {
+        if (name != null) {
+            names.put(name, Collections.unmodifiableSet(new HashSet<>(uris)));
+        }
+    }
+
+    /**
+     * Load the entry for an issn with journals found some other way than by {@link #findByIssn(String)}
+     *
+     * @param issn the typed issn, in the type:value format used by PASS
+     * @param uris the URIs of every journal with this issn, in the form {@link Issn#toString(long)} gives it
+     */
+    void loadIssn(String issn, Set<URI> uris) {
+        long key = Issn.parse(issn);
+        if (key != Issn.INVALID) {
+            issns.put(key, Collections.unmodifiableSet(new HashSet<>(uris)));
+        }
+    }
+
+    /**
+     * Record a journal as it is stored in PASS. The journal is added to the entries for its name and ISSNs which
+     * are currently loaded; entries which are not loaded will pick the journal up from PASS when they are.
+     *
+     * @param uri   the internal URI of the journal
+     * @param name  the journal name
+     * @param issns the typed issns of the journal
+     */
+    void addJournal(URI uri, String name, Collection<String> issns) {
+        if (name != null) {
+            names.update(name, uris -> with(uris, uri));
+        }
+        for (String issn : issns) {
+            long key = Issn.parse(issn);
+            if (key != Issn.INVALID) {
+                this.issns.update(key, uris -> with(uris, uri));
+            }
+        }
+    }
+
+    /**
+     * Load the index with every journal in PASS, so that the first requests after startup do not all have to go to
+     * PASS. Journals are read by a pool of threads as PASS lists them, with a bounded number waiting to be read.
+     * Only the names and ISSNs are kept, and no more of each than the index holds; the rest are loaded from PASS
+     * when they are asked for, as usual. Every entry loaded holds all of the journals with its name or ISSN, so if
+     * any journal cannot be read, nothing is loaded.
+     *
+     * @param threads       the number of journals read from PASS at once
+     * @param threadFactory makes the threads reading journals
+     * @return the number of journals read
+     * @throws InterruptedException if interrupted while waiting for the journals to be read
+     * @throws RuntimeException     if a journal could not be listed or read
+     */
+    int preload(int threads, ThreadFactory threadFactory) throws InterruptedException {
+        long start = System.nanoTime();
+        Map<String, Set<URI>> byName = new HashMap<>();
+        Map<Long, Set<URI>> byIssn = new HashMap<>();
+        AtomicInteger read = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        //when the readers fall behind, the thread listing the journals reads them too, rather than queueing more
+        ThreadPoolExecutor readers = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                                                            new ArrayBlockingQueue<>(threads * 4), threadFactory,
+                                                            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            passClient.processAllEntities(uri -> readers.execute(() -> {
+                if (failure.get() != null) {
+                    return;
+                }
+                try {
+                    Journal journal = passClient.readResource(uri, Journal.class);
+                    if (journal != null) {
+                        synchronized (byName) {
+                            collect(byName, journal.getJournalName(), uri);
+                            for (String issn : journal.getIssns()) {
+                                long key = Issn.parse(issn);
+                                if (key != Issn.INVALID) {
+                                    collect(byIssn, key, uri);
+                                }
+                            }
+                        }
+                    }
+                    int count = read.incrementAndGet();
+                    if (count % PROGRESS_INTERVAL == 0) {
+                        LOG.info("Preloading the journal index: " + count + " journals read");
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }), Journal.class);
+        } finally {
+            readers.shutdown();
+            while (!readers.awaitTermination(1, MINUTES)) {
+                LOG.info("Preloading the journal index: waiting for " + readers.getActiveCount() +
+                         " journals to be read");
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        for (Map.Entry<String, Set<URI>> entry : byName.entrySet()) {
+            names.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+        }
+        for (Map.Entry<Long, Set<URI>> entry : byIssn.entrySet()) {
+            issns.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+        }
+        LOG.info("Preloaded the journal index with " + byName.size() + " names and " + byIssn.size() +
+                 " ISSNs from " + read.get() + " journals in " + NANOSECONDS.toMillis(System.nanoTime() - start) +
+                 " ms");
+        return read.get();
+    }
+
+    void clear() {
+        names.clear();
+        issns.clear();
+    }
+
+    private <K> Set<URI> find(ExpiringLruCache<K, Set<URI>> cache, String attribute, String value, K key) {
+        if (value == null) {
+            return passClient.findAllByAttribute(Journal.class, attribute, value);
+        }
+        Set<URI> uris = cache.get(key);
+        if (uris == null) {
+            Set<URI> found = passClient.findAllByAttribute(Journal.class, attribute, value);
+            uris = found == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(found));
+            cache.put(key, uris);
+        }
+        return uris;
+    }
+
+    /**
+     * add a journal to the entry for a key, unless the entry would be one more than the index holds
+     */
+    private <K> void collect(Map<K, Set<URI>> keys, K key, URI uri) {
+        if (key == null) {
+            return;
+        }
+        Set<URI> uris = keys.get(key);
+        if (uris == null) {
+            if (keys.size() >= capacity) {
+                return;
+            }
+            uris = new HashSet<>();
+            keys.put(key, uris);
+        }
+        uris.add(uri);
+    }
+
+    private static Set<URI> with(Set<URI> uris, URI uri) {
+        if (uris.contains(uri)) {
+            return uris;
+        }
+        Set<URI> updated = new HashSet<>(uris);
+        updated.add(uri);
+        return Collections.unmodifiableSet(updated);
+    }
+}
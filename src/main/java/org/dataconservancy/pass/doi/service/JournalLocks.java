@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Locks held while deciding whether a journal is in PASS and creating it if not, so that concurrent requests for
+ * the same new journal create it only once. A journal is locked by its name and each of its ISSNs, so that two
+ * requests which share any of them are serialized. The keys are hashed onto a fixed number of locks; keys which
+ * happen to share a lock only cost each other some waiting.
+ * <p>
+ * The journals created under the locks are remembered for a while, by the same name and ISSNs PASS is searched
+ * by, so that a request which takes the locks after another has created its journal finds that journal even if
+ * PASS, its search index and the journal index have yet to show it.
+ */
+class JournalLocks {
+
+    //the most journals remembered as created
+    private static final int CREATED_CAPACITY = 10000;
+
+    private final ReentrantLock[] stripes;
+
+    //journals recently created under the locks, by exact name and by typed issn
+    private final ExpiringLruCache<String, Set<URI>> createdByName;
+    private final ExpiringLruCache<String, Set<URI>> createdByIssn;
+
+    /**
+     * @param stripes    the number of locks the keys are spread over
+     * @param createdTtl how long created journals are remembered, in milliseconds
+     */
+    JournalLocks(int stripes, long createdTtl) {
+        this.stripes = new ReentrantLock[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.createdByName = new ExpiringLruCache<>(CREATED_CAPACITY, createdTtl);
+        this.createdByIssn = new ExpiringLruCache<>(CREATED_CAPACITY, createdTtl);
+    }
+
+    /**
+     * Remember a journal created while holding its locks
+     *
+     * @param uri   the internal URI of the journal
+     * @param name  the journal name
+     * @param issns the typed issns of the journal
+     */
+    void created(URI uri, String name, Collection<String> issns) {
+        if (name != null) {
+            remember(createdByName, name, uri);
+        }
+        for (String issn : issns) {
+            if (issn != null) {
+                remember(createdByIssn, issn, uri);
+            }
+        }
+    }
+
+    /**
+     * Find the best match for a journal among those recently created, ranked as {@link JournalFinder} ranks the
+     * journals in PASS. This is to be called while holding the locks for the journal.
+     *
+     * @param name  the journal name, or null
+     * @param issns the typed issns of the journal
+     * @return the URI of the best match, or null if no journal created recently matches
+     */
+    URI findCreated(String name, List<String> issns) {
+        List<Set<URI>> lookups = new ArrayList<>(issns.size() + 1);
+        lookups.add(name == null ? null : createdByName.get(name));
+        for (String issn : issns) {
+            lookups.add(issn == null ? null : createdByIssn.get(issn));
+        }
+        return JournalFinder.bestMatch(lookups);
+    }
+
+    /**
+     * run an action while holding the locks for a journal
+     *
+     * @param name   the journal name, or null
+     * @param issns  the typed issns of the journal, in the type:value format used by PASS
+     * @param action the action
+     * @param <T>    the result type of the action
+     * @return the result of the action
+     */
+    <T> T withLocks(String name, Collection<String> issns, Supplier<T> action) {
+        int[] held = stripesFor(name, issns);
+        //always taken in the same order, so that two journals sharing several keys cannot deadlock
+        int locked = 0;
+        try {
+            for (int stripe : held) {
+                stripes[stripe].lock();
+                locked++;
+            }
+            return action.get();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                stripes[held[i]].unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the distinct locks for the name and issns, in increasing order
+     */
+    private int[] stripesFor(String name, Collection<String> issns) {
+        int[] keys = new int[issns.size() + 1];
+        int count = 0;
+        if (name != null) {
+            keys[count++] = stripe(name.hashCode());
+        }
+        for (String issn : issns) {
+            long packed = Issn.parse(issn);
+            //invalid issns are never looked up, so cannot lead to a duplicate
+            if (packed != Issn.INVALID) {
+                //by value alone, since the same ISSN may come with different types
+                keys[count++] = stripe(Long.hashCode(Issn.untyped(packed)));
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || keys[distinct - 1] != keys[i]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    private static void remember(ExpiringLruCache<String, Set<URI>> created, String key, URI uri) {
+        Set<URI> uris = created.get(key);
+        if (uris == null) {
+            created.put(key, Collections.singleton(uri));
+        } else if (!uris.contains(uri)) {
+            Set<URI> more = new HashSet<>(uris);
+            more.add(uri);
+            created.put(key, Collections.unmodifiableSet(more));
+        }
+    }
+
+    private int stripe(int hash) {
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds ISSNs to PASS journals in the background. ISSNs queued for a journal are held for a short delay, during which
+ * further ISSNs for the same journal are merged with them, and are then written with a single read-modify-write of
+ * the journal. A write which fails is tried again, after a delay which doubles with each attempt, up to a maximum
+ * number of attempts.
+ * <p>
+ * Queued ISSNs are lost if the service stops without being shut down, unless a log file is given: each merge is then
+ * appended to the log before it is acknowledged, the log is replayed when the queue is opened, and it is emptied
+ * whenever every queued write has been made. A line of the log cut short by a crash, or whose ISSNs fail their
+ * checksum, is discarded on replay together with everything after it. Whether the log is forced to disk on each
+ * merge is a trade of latency for durability against a crash of the machine rather than of the service.
+ */
+class JournalUpdateQueue implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalUpdateQueue.class);
+
+    private final PassClient passClient;
+    private final long delay;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final FileChannel log;
+    private final boolean sync;
+
+    //a single thread, so that writes to the same journal never overlap
+    private final ScheduledThreadPoolExecutor writer;
+
+    //ISSNs waiting to be written, by journal
+    private final Map<URI, Pending> pending = new LinkedHashMap<>();
+    //journals being written at the moment
+    private int writing;
+    //whether the log holds ISSNs which could not be written before the queue was closed
+    private boolean unwritten;
+
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param passClient    the client used to write the journals
+     * @param delay         how long ISSNs are held for further ISSNs for the same journal, in ms
+     * @param maxAttempts   the most times a write is tried before its ISSNs are given up
+     * @param retryDelay    the delay before the first retry of a failed write, in ms
+     * @param logFile       the file in which queued ISSNs are kept until they are written, or null to keep them only
+     *                      in memory
+     * @param sync          whether each merge is forced to disk before it is acknowledged
+     * @param threadFactory makes the thread which writes the journals
+     * @throws IOException if the log could not be opened or replayed
+     */
+    JournalUpdateQueue(PassClient passClient, long delay, int maxAttempts, long retryDelay, Path logFile,
+                       boolean sync, ThreadFactory threadFactory) throws IOException {
+        this.passClient = passClient;
+        this.delay = delay;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = retryDelay;
+        this.sync = sync;
+        this.writer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        //queued journals are written by close() instead
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        if (logFile == null) {
+            this.log = null;
+            return;
+        }
+        if (logFile.getParent() != null) {
+            Files.createDirectories(logFile.getParent());
+        }
+        if (Files.exists(logFile)) {
+            replay(logFile);
+        }
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.position(log.size());
+    }
+
+    /**
+     * queue ISSNs to be added to a journal, returning at once
+     *
+     * @param journal the internal URI of the journal
+     * @param issns   the typed issns, in the type:value format used by PASS
+     * @throws IOException if the ISSNs could not be logged; they are not queued
+     */
+    synchronized void merge(URI journal, Collection<String> issns) throws IOException {
+        if (log != null) {
+            StringBuilder line = new StringBuilder(journal.toString());
+            for (String issn : issns) {
+                line.append('\t').append(issn);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                log.write(bytes);
+            }
+            if (sync) {
+                log.force(false);
+            }
+        }
+        queue(journal, issns, 0, delay);
+    }
+
+    /**
+     * write every queued journal now, waiting for the writes to finish; failed writes are not tried again. ISSNs
+     * which could not be written stay in the log, if there is one, to be tried again when the queue is next opened.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, MINUTES)) {
+                LOG.warn("Gave up waiting for a journal update to be written to PASS");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<URI> journals;
+        synchronized (this) {
+            journals = new ArrayList<>(pending.keySet());
+        }
+        LOG.info("Writing " + journals.size() + " queued journal updates to PASS");
+        for (URI journal : journals) {
+            write(journal, true);
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the journal update log", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of journals with ISSNs waiting to be written
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of times ISSNs were merged with others already queued for the same journal
+     */
+    long getMerged() {
+        return merged.get();
+    }
+
+    /**
+     * @return the number of journals written to PASS
+     */
+    long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of failed writes which were tried again
+     */
+    long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * @return the number of writes given up after their last attempt failed
+     */
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * add ISSNs to the entry for a journal, scheduling a write if the journal has none pending
+     */
+    private synchronized void queue(URI journal, Collection<String> issns, int attempts, long after) {
+        Pending entry = pending.get(journal);
+        if (entry != null) {
+            entry.issns.addAll(issns);
+            entry.attempts = Math.max(entry.attempts, attempts);
+            merged.incrementAndGet();
+            return;
+        }
+        entry = new Pending(attempts);
+        entry.issns.addAll(issns);
+        pending.put(journal, entry);
+        if (!writer.isShutdown()) {
+            writer.schedule(() -> write(journal, false), after, MILLISECONDS);
+        }
+    }
+
+    /**
+     * add the ISSNs queued for a journal to it in PASS
+     *
+     * @param journal the journal
+     * @param closing whether the queue is closing, when a failed write is not tried again
+     */
+    private void write(URI journal, boolean closing) {
+        Pending entry;
+        synchronized (this) {
+            entry = pending.remove(journal);
+            if (entry == null) {
+                return;
+            }
+            writing++;
+        }
+        try {
+            Journal passJournal = passClient.readResource(journal, Journal.class);
+            if (passJournal == null) {
+                LOG.error("Journal " + journal + " could not be read; dropping its ISSN updates " + entry.issns);
+                failed.incrementAndGet();
+            } else if (!passJournal.getIssns().containsAll(entry.issns)) {
+                Set<String> issns = new LinkedHashSet<>(passJournal.getIssns());
+                issns.addAll(entry.issns);
+                passJournal.setIssns(new ArrayList<>(issns));
+                passClient.updateResource(passJournal);
+                written.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            int attempts = entry.attempts + 1;
+            if (closing || attempts >= maxAttempts) {
+                LOG.error("Could not add ISSNs " + entry.issns + " to journal " + journal + " after " + attempts +
+                          " attempts", e);
+                failed.incrementAndGet();
+                if (closing) {
+                    //left in the log, if there is one, for the next run to try again
+                    synchronized (this) {
+                        unwritten = true;
+                    }
+                }
+            } else {
+                LOG.warn("Could not add ISSNs to journal " + journal + "; trying again: " + e.getMessage());
+                retried.incrementAndGet();
+                queue(journal, entry.issns, attempts, retryDelay << (attempts - 1));
+            }
+        } finally {
+            synchronized (this) {
+                writing--;
+                truncateIfDrained();
+            }
+        }
+    }
+
+    /**
+     * empty the log once everything in it has been written, so that it does not grow without bound
+     */
+    private void truncateIfDrained() {
+        if (log == null || unwritten || !pending.isEmpty() || writing > 0) {
+            return;
+        }
+        try {
+            log.truncate(0);
+            if (sync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not empty the journal update log", e);
+        }
+    }
+
+    /**
+     * queue the ISSNs left in a log by an earlier run, which are written after the usual delay. The log is truncated
+     * at the first line which is incomplete or malformed, as a crash part way through a merge would leave it, so
+     * that later merges are not appended to the damaged line.
+     */
+    private void replay(Path logFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(logFile);
+        int lines = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            int end = offset;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            if (end == bytes.length) {
+                //a line cut short by a crash
+                break;
+            }
+            String[] fields = new String(bytes, offset, end - offset, StandardCharsets.UTF_8).split("\t");
+            if (!isComplete(fields)) {
+                break;
+            }
+            queue(URI.create(fields[0]), new ArrayList<>(Arrays.asList(fields).subList(1, fields.length)), 0, delay);
+            lines++;
+            offset = end + 1;
+        }
+        if (offset < bytes.length) {
+            LOG.warn("Truncating damaged journal update log " + logFile + " from " + bytes.length + " to " + offset +
+                     " bytes");
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+        if (lines > 0) {
+            LOG.info("Replayed " + lines + " journal updates from " + logFile);
+        }
+    }
+
+    /**
+     * @param fields the fields of a line of the log
+     * @return whether the line has a journal URI and ISSNs which all pass their checksum
+     */
+    private static boolean isComplete(String[] fields) {
+        if (fields.length < 2) {
+            return false;
+        }
+        try {
+            URI.create(fields[0]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        for (int i = 1; i < fields.length; i++) {
+            if (Issn.parse(fields[i]) == Issn.INVALID) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Pending {
+        private final Set<String> issns = new LinkedHashSet<>();
+        private int attempts;
+
+        private Pending(int attempts) {
+            this.attempts = attempts;
+        }
+    }
+}
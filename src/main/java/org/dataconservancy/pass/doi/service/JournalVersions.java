@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Versions of the PASS journals, so that a cached result built from a journal can be recognised as out of date when
+ * it is read, rather than having to be found when the journal is updated.
+ * <p>
+ * Each update of a journal is given the next number of a sequence, and a result is stamped with the number current
+ * before its journal was read, or the number of the update it made itself; a result is out of date if its journal
+ * has been updated since. Only the most recent updates are remembered. Once an update is forgotten, every result
+ * stamped before it counts as out of date, since it might have been built before that update.
+ */
+class JournalVersions {
+
+    private final int capacity;
+
+    //the sequence number of the last update of each journal, least recently updated first
+    private final Map<String, Long> updates;
+    private long sequence;
+    //results stamped before this may have been built before an update no longer remembered
+    private long floor;
+
+    /**
+     * @param capacity the number of journal updates remembered
+     */
+    JournalVersions(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.updates = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > JournalVersions.this.capacity) {
+                    floor = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the stamp for a result about to be built, to be taken before its journal is read
+     */
+    synchronized long current() {
+        return sequence;
+    }
+
+    /**
+     * record that a journal has been updated
+     *
+     * @param journalId the externalized id of the journal
+     * @param stamp     the stamp taken before the journal was read for the update
+     * @return the stamp for the result built with the update: the sequence number of the update, unless something
+     * else has updated the journal since it was read, in which case the result is out of date already
+     */
+    synchronized long updated(String journalId, long stamp) {
+        boolean current = isCurrent(journalId, stamp);
+        updates.remove(journalId);
+        updates.put(journalId, ++sequence);
+        return current ? sequence : stamp;
+    }
+
+    /**
+     * @param journalId the externalized id of the journal a result names
+     * @param stamp     the stamp the result was built with
+     * @return whether the journal has not been updated since the result was built
+     */
+    synchronized boolean isCurrent(String journalId, long stamp) {
+        if (stamp < floor) {
+            return false;
+        }
+        Long updated = updates.get(journalId);
+        return updated == null || updated <= stamp;
+    }
+}
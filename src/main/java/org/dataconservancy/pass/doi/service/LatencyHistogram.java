@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations over fixed buckets, as Prometheus expects them. Recording a duration is a search of the
+ * bucket bounds and two uncontended additions, so it can be done on every request.
+ */
+class LatencyHistogram {
+
+    /**
+     * bucket bounds in seconds, from the microseconds spent validating a doi to the tens of seconds a request to
+     * Crossref may take before it times out
+     */
+    static final double[] DEFAULT_BUCKETS = {
+        0.00001, 0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private final double[] buckets;
+    private final long[] bounds;
+    //observations in each bucket, not cumulative; the last is for observations beyond the last bound
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param buckets the upper bounds of the buckets, in seconds, in increasing order
+     */
+    LatencyHistogram(double[] buckets) {
+        this.buckets = buckets.clone();
+        this.bounds = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            bounds[i] = (long) (buckets[i] * SECONDS.toNanos(1));
+        }
+        this.counts = new LongAdder[buckets.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos a duration, in ns
+     */
+    void record(long nanos) {
+        int i = 0;
+        while (i < bounds.length && nanos > bounds[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    long getCount() {
+        long count = 0;
+        for (LongAdder c : counts) {
+            count += c.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations recorded, in seconds
+     */
+    double getSum() {
+        return sum.sum() / (double) SECONDS.toNanos(1);
+    }
+
+    /**
+     * write the histogram as Prometheus samples
+     *
+     * @param out    where to write
+     * @param name   the metric name
+     * @param labels labels for every sample, as {@code name="value"} pairs separated by commas, or an empty string
+     */
+    void write(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += counts[i].sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(buckets[i]).append("\"} ")
+               .append(cumulative).append('\n');
+        }
+        cumulative += counts[buckets.length].sum();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(getSum()).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
@@ -16,29 +16,58 @@
  */
 package org.dataconservancy.pass.doi.service;
 
-import static java.lang.Thread.sleep;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.json.Json;
-import javax.json.JsonArray;
+import javax.json.JsonException;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.json.stream.JsonParsingException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -47,31 +76,46 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassClientFactory;
 import org.dataconservancy.pass.client.PassJsonAdapter;
 import org.dataconservancy.pass.client.adapter.PassJsonAdapterBasic;
+import org.dataconservancy.pass.doi.service.ServiceMetrics.Stage;
 import org.dataconservancy.pass.model.Journal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@WebServlet(urlPatterns = "/journal")
+@WebServlet(urlPatterns = {"/journal", PassDoiServlet.BATCH_PATH}, asyncSupported = true, loadOnStartup = 1)
 public class PassDoiServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(PassDoiServlet.class);
 
+    static final String BATCH_PATH = "/journal/batch";
+
     PassClient passClient = PassClientFactory.getPassClient();
     PassJsonAdapter json = new PassJsonAdapterBasic();
 
     //longest time we expect it should take to create a Journal object, in ms
-    private int cachePeriod = 30000;//milliseconds
+    int cachePeriod = 30000;//milliseconds
     private OkHttpClient client;
-
-    private String BASE_URL = "https://api.crossref.org/";
+    //keeps requests to Crossref within its rate limit
+    CrossrefRateLimiter xrefRateLimiter;
+    //stops requests going to Crossref while it is failing
+    CrossrefCircuitBreaker xrefBreaker;
+    //sends the circuit breaker's probes, which bypass it
+    private OkHttpClient probeClient;
+    private ScheduledExecutorService xrefProbes;
+
+    String BASE_URL = "https://api.crossref.org/";
     private String VERSION = "v1/";
     private String BASIC_PREFIX = "works/";
     //some defaults
@@ -79,7 +123,73 @@ public class PassDoiServlet extends HttpServlet {
     private String FEDORA_INTERNAL = "http://fcrepo:8080/fcrepo/rest/";
     private String FEDORA_EXTERNAL = "https://pass.local/fcrepo/rest/";
 
-    private Set<String> activeJobs = new HashSet<>();
+    //requests currently being resolved, keyed by doi
+    private ConcurrentMap<String, CompletableFuture<DoiResponse>> activeJobs = new ConcurrentHashMap<>();
+    //longest time a request will wait for an active request for the same doi, in ms
+    long coalesceTimeout;
+    //number of requests which were answered by waiting for an active request
+    final AtomicLong coalescedRequests = new AtomicLong();
+    //releases the active request for a doi if it runs longer than the cache period
+    ScheduledThreadPoolExecutor lockExpiry;
+    //resolves the dois of batch requests
+    private ExecutorService batchExecutor;
+    //most dois of a single batch request being resolved at once
+    private int batchParallelism;
+
+    //recently retrieved Crossref works records, keyed by doi
+    ExpiringLruCache<String, CrossrefRecord> xrefCache;
+    //how long records are used stale after they expire, in ms
+    long xrefStaleTtl;
+    //expired records which Crossref said had not changed, and which had, when asked
+    final AtomicLong xrefNotModified = new AtomicLong();
+    final AtomicLong xrefModified = new AtomicLong();
+    //Crossref works records kept on disk across restarts, keyed by doi; null if not in use
+    CrossrefRecordStore xrefStore;
+    //how long a stored record is used before going back to Crossref, in ms
+    long xrefStoreTtl;
+    //successful results, keyed by doi
+    ExpiringLruCache<String, DoiResponse> resultCache;
+    //updates of journals, against which cached results are checked when read
+    JournalVersions journalVersions;
+    //dois found not to exist, or not to be journal articles, kept apart so that they cannot evict good results
+    ExpiringLruCache<String, DoiResponse> negativeCache;
+    //PASS journals by name and issn
+    JournalIndex journalIndex;
+    //serialize finding and creating the same journal, so that it is created only once
+    JournalLocks journalLocks;
+    //ISSNs from Crossref dropped for failing their checksum
+    final AtomicLong invalidIssns = new AtomicLong();
+
+    //finds journals with a single search, rather than through the journal index; null when not configured
+    JournalFinder journalFinder;
+    //writes new ISSNs of PASS journals in the background; null if they are written on the request path
+    JournalUpdateQueue journalUpdates;
+    //runs the PASS queries made by find()
+    private ExecutorService lookupExecutor;
+    //longest time find() will wait for its PASS queries, in ms
+    long lookupTimeout;
+    //PASS queries made by find() which were abandoned, for taking too long or finding the lookup pool full
+    final AtomicLong abandonedLookups = new AtomicLong();
+    //largest Crossref response body which will be read, in bytes
+    long xrefMaxBody;
+    //does the PASS work of asynchronous requests, once their Crossref records have arrived
+    private ExecutorService passExecutor;
+    //longest time an asynchronous request may take, in ms
+    long asyncTimeout;
+    //refreshes cached results in demand before they expire; null if results are left to expire
+    ExecutorService refreshExecutor;
+    //how long before its expiry a cached result may be refreshed, in ms
+    long refreshAhead;
+    //the reads since it was cached which mark a result as in demand
+    int refreshMinReads;
+    //the share of the Crossref rate limit which refreshes leave for client requests, in percent
+    int refreshReserve;
+    //refreshes which replaced their result, were put off for lack of Crossref capacity, and failed
+    final AtomicLong refreshed = new AtomicLong();
+    final AtomicLong refreshSkipped = new AtomicLong();
+    final AtomicLong refreshFailed = new AtomicLong();
+    //measurements of the service, served by the MetricsServlet
+    final ServiceMetrics metrics = new ServiceMetrics();
 
     @Override
     public void init(ServletConfig config) throws ServletException {
@@ -88,12 +198,281 @@ public class PassDoiServlet extends HttpServlet {
         builder.connectTimeout(30, SECONDS);
         builder.readTimeout(30, SECONDS);
         builder.writeTimeout(30, SECONDS);
+        //asynchronous calls are limited by the dispatcher rather than by threads; all of ours go to one host
+        int xrefMaxRequests = (int) getLongSetting("PASS_DOI_SERVICE_XREF_MAX_REQUESTS", 64);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(xrefMaxRequests);
+        dispatcher.setMaxRequestsPerHost(xrefMaxRequests);
+        builder.dispatcher(dispatcher);
+        builder.connectionPool(new ConnectionPool(xrefMaxRequests, 5, MINUTES));
+        int breakerWindow = (int) getLongSetting("PASS_DOI_SERVICE_XREF_BREAKER_WINDOW", 20);
+        int breakerMinimum = (int) getLongSetting("PASS_DOI_SERVICE_XREF_BREAKER_MINIMUM", 10);
+        long breakerFailureRate = getLongSetting("PASS_DOI_SERVICE_XREF_BREAKER_FAILURE_RATE", 50);
+        long slowCall = getLongSetting("PASS_DOI_SERVICE_XREF_SLOW_CALL", 10000);
+        long breakerOpen = getLongSetting("PASS_DOI_SERVICE_XREF_BREAKER_OPEN", 30000);
+        xrefProbes = Executors.newSingleThreadScheduledExecutor(daemonThreads("crossref-probe"));
+        xrefBreaker = new CrossrefCircuitBreaker(breakerWindow, breakerMinimum, breakerFailureRate / 100.0, slowCall,
+                                                 breakerOpen, xrefProbes, this::probeCrossref);
+        builder.addInterceptor(xrefBreaker);
+        //until Crossref tells us its rate limit, assume the one it documents for the public pool
+        int xrefRateLimit = (int) getLongSetting("PASS_DOI_SERVICE_XREF_RATE_LIMIT", 50);
+        long xrefRateInterval = getLongSetting("PASS_DOI_SERVICE_XREF_RATE_INTERVAL", 1000);
+        long xrefRateWait = getLongSetting("PASS_DOI_SERVICE_XREF_RATE_WAIT", 5000);
+        xrefRateLimiter = new CrossrefRateLimiter(xrefRateLimit, xrefRateInterval, xrefMaxRequests, xrefRateWait);
+        builder.addInterceptor(xrefRateLimiter);
         client = builder.build();
+        OkHttpClient.Builder probeBuilder = client.newBuilder();
+        probeBuilder.interceptors().remove(xrefBreaker);
+        probeClient = probeBuilder.build();
+
+        int xrefCacheSize = (int) getLongSetting("PASS_DOI_SERVICE_XREF_CACHE_SIZE", 1000);
+        long xrefCacheTtl = getLongSetting("PASS_DOI_SERVICE_XREF_CACHE_TTL", 3600);
+        //expired records are kept a while longer, to be served stale while Crossref is unavailable
+        xrefStaleTtl = SECONDS.toMillis(getLongSetting("PASS_DOI_SERVICE_XREF_STALE_TTL", 604800));
+        xrefCache = new ExpiringLruCache<>(xrefCacheSize, SECONDS.toMillis(xrefCacheTtl), xrefStaleTtl);
+
+        int resultCacheSize = (int) getLongSetting("PASS_DOI_SERVICE_RESULT_CACHE_SIZE", 1000);
+        long resultCacheTtl = getLongSetting("PASS_DOI_SERVICE_RESULT_CACHE_TTL", 3600);
+        resultCache = new ExpiringLruCache<>(resultCacheSize, SECONDS.toMillis(resultCacheTtl));
+        journalVersions = new JournalVersions(resultCacheSize);
+
+        int negativeCacheSize = (int) getLongSetting("PASS_DOI_SERVICE_NEGATIVE_CACHE_SIZE", 10000);
+        long negativeCacheTtl = getLongSetting("PASS_DOI_SERVICE_NEGATIVE_CACHE_TTL", 300);
+        negativeCache = new ExpiringLruCache<>(negativeCacheSize, SECONDS.toMillis(negativeCacheTtl));
+
+        String xrefStoreDir = System.getenv("PASS_DOI_SERVICE_XREF_STORE_DIR");
+        xrefStoreTtl = SECONDS.toMillis(getLongSetting("PASS_DOI_SERVICE_XREF_STORE_TTL", 86400));
+        if (xrefStoreDir != null && !xrefStoreDir.trim().isEmpty()) {
+            long xrefStoreSize = getLongSetting("PASS_DOI_SERVICE_XREF_STORE_MAX_SIZE", 1024L * 1024 * 1024);
+            try {
+                xrefStore = new CrossrefRecordStore(Paths.get(xrefStoreDir.trim()), xrefStoreSize,
+                                                    Math.min(64L * 1024 * 1024, xrefStoreSize / 8));
+            } catch (IOException e) {
+                LOG.error("Could not open the Crossref record store in " + xrefStoreDir + "; carrying on without it",
+                          e);
+            }
+        }
+
+        xrefMaxBody = getLongSetting("PASS_DOI_SERVICE_XREF_MAX_BODY", 16 * 1024 * 1024);
+
+        int journalIndexSize = (int) getLongSetting("PASS_DOI_SERVICE_JOURNAL_INDEX_SIZE", 10000);
+        long journalIndexTtl = getLongSetting("PASS_DOI_SERVICE_JOURNAL_INDEX_TTL", 600);
+        journalIndex = new JournalIndex(passClient, journalIndexSize, SECONDS.toMillis(journalIndexTtl));
+        //the container does not send requests until init returns, so a preloaded index is ready for the first of them
+        int preloadThreads = (int) getLongSetting("PASS_DOI_SERVICE_JOURNAL_PRELOAD_THREADS", 0);
+        if (preloadThreads > 0 && journalIndexSize > 0 && journalIndexTtl > 0) {
+            try {
+                journalIndex.preload(preloadThreads, daemonThreads("journal-preload"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while preloading the journal index; entries will be loaded as they are needed");
+            } catch (RuntimeException e) {
+                LOG.warn("Could not preload the journal index; entries will be loaded as they are needed", e);
+            }
+        }
+
+        journalLocks = new JournalLocks((int) getLongSetting("PASS_DOI_SERVICE_JOURNAL_LOCK_STRIPES", 256),
+                                        SECONDS.toMillis(getLongSetting("PASS_DOI_SERVICE_JOURNAL_CREATED_TTL", 300)));
+
+        long journalUpdateDelay = getLongSetting("PASS_DOI_SERVICE_JOURNAL_UPDATE_DELAY", 0);
+        if (journalUpdateDelay > 0) {
+            int journalUpdateAttempts = (int) getLongSetting("PASS_DOI_SERVICE_JOURNAL_UPDATE_ATTEMPTS", 5);
+            long journalUpdateRetry = getLongSetting("PASS_DOI_SERVICE_JOURNAL_UPDATE_RETRY", 1000);
+            //without a log, queued updates only survive an orderly shutdown
+            String journalUpdateLog = System.getenv("PASS_DOI_SERVICE_JOURNAL_UPDATE_LOG");
+            Path journalUpdateLogFile = journalUpdateLog != null && !journalUpdateLog.trim().isEmpty() ?
+                                        Paths.get(journalUpdateLog.trim()) : null;
+            boolean journalUpdateSync = getLongSetting("PASS_DOI_SERVICE_JOURNAL_UPDATE_SYNC", 0) != 0;
+            try {
+                journalUpdates = new JournalUpdateQueue(passClient, journalUpdateDelay, journalUpdateAttempts,
+                                                        journalUpdateRetry, journalUpdateLogFile, journalUpdateSync,
+                                                        daemonThreads("journal-update"));
+            } catch (IOException e) {
+                LOG.error("Could not open the journal update log " + journalUpdateLog +
+                          "; writing journal updates directly", e);
+            }
+        }
+
+        int lookupThreads = (int) getLongSetting("PASS_DOI_SERVICE_LOOKUP_THREADS", 8);
+        int lookupQueue = (int) getLongSetting("PASS_DOI_SERVICE_LOOKUP_QUEUE", 1000);
+        //lookups queued beyond this would only wait out their deadline, so they are abandoned at once instead
+        lookupExecutor = new ThreadPoolExecutor(lookupThreads, lookupThreads, 0, MILLISECONDS,
+                                                new ArrayBlockingQueue<>(lookupQueue), daemonThreads("journal-lookup"));
+        lookupTimeout = getLongSetting("PASS_DOI_SERVICE_LOOKUP_TIMEOUT", 10000);
+
+        if ("elasticsearch".equalsIgnoreCase(System.getenv("PASS_DOI_SERVICE_JOURNAL_FINDER"))) {
+            String elasticsearchUrl = System.getenv("PASS_ELASTICSEARCH_URL") != null ? System.getenv(
+                "PASS_ELASTICSEARCH_URL") : "http://localhost:9200/pass/";
+            int elasticsearchLimit = (int) getLongSetting("PASS_ELASTICSEARCH_LIMIT", 100);
+            OkHttpClient searchClient = new OkHttpClient.Builder()
+                .connectTimeout(lookupTimeout, MILLISECONDS)
+                .readTimeout(lookupTimeout, MILLISECONDS)
+                .build();
+            journalFinder = new ElasticsearchJournalFinder(searchClient, elasticsearchUrl, elasticsearchLimit,
+                                                           journalIndex);
+        }
+
+        coalesceTimeout = getLongSetting("PASS_DOI_SERVICE_COALESCE_TIMEOUT", cachePeriod);
+        lockExpiry = new ScheduledThreadPoolExecutor(1, daemonThreads("doi-lock-expiry"));
+        //completed requests cancel their expiry, which should not linger in the queue
+        lockExpiry.setRemoveOnCancelPolicy(true);
+
+        int batchThreads = (int) getLongSetting("PASS_DOI_SERVICE_BATCH_THREADS", 4);
+        batchExecutor = Executors.newFixedThreadPool(batchThreads, daemonThreads("doi-batch"));
+        batchParallelism = (int) getLongSetting("PASS_DOI_SERVICE_BATCH_PARALLELISM", batchThreads);
+
+        int passThreads = (int) getLongSetting("PASS_DOI_SERVICE_PASS_THREADS", 16);
+        int passQueue = (int) getLongSetting("PASS_DOI_SERVICE_PASS_QUEUE", 1000);
+        ThreadPoolExecutor passPool = new ThreadPoolExecutor(passThreads, passThreads, 0, MILLISECONDS,
+                                                             new ArrayBlockingQueue<>(passQueue),
+                                                             daemonThreads("pass-work"));
+        passExecutor = passPool;
+        asyncTimeout = getLongSetting("PASS_DOI_SERVICE_ASYNC_TIMEOUT", 60000);
+
+        refreshAhead = SECONDS.toMillis(getLongSetting("PASS_DOI_SERVICE_REFRESH_AHEAD", 0));
+        if (refreshAhead > 0) {
+            refreshMinReads = (int) getLongSetting("PASS_DOI_SERVICE_REFRESH_MIN_READS", 3);
+            refreshReserve = (int) Math.min(100, Math.max(0, getLongSetting("PASS_DOI_SERVICE_REFRESH_RESERVE", 50)));
+            int refreshThreads = (int) getLongSetting("PASS_DOI_SERVICE_REFRESH_THREADS", 2);
+            int refreshQueue = (int) getLongSetting("PASS_DOI_SERVICE_REFRESH_QUEUE", 100);
+            refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 0, MILLISECONDS,
+                                                     new ArrayBlockingQueue<>(refreshQueue),
+                                                     daemonThreads("doi-refresh"));
+        }
+
+        registerMetrics(passPool);
+        if (config != null) {
+            config.getServletContext().setAttribute(ServiceMetrics.CONTEXT_ATTRIBUTE, metrics);
+        }
+    }
+
+    /**
+     * register the counters and gauges kept by the parts of the service, so that they are served with the
+     * metrics of the requests
+     *
+     * @param passPool the pool doing the PASS work of asynchronous requests
+     */
+    private void registerMetrics(ThreadPoolExecutor passPool) {
+        registerCacheMetrics("crossref", xrefCache);
+        registerCacheMetrics("result", resultCache);
+        registerCacheMetrics("negative", negativeCache);
+        metrics.counter("coalesced_requests", "Requests answered by waiting for an active request for the same DOI",
+                        "", coalescedRequests::get);
+        metrics.gauge("pass_queue_size", "Asynchronous requests waiting for a thread to do their PASS work", "",
+                      () -> passPool.getQueue().size());
+
+        metrics.counter("crossref_throttled_responses", "Responses from Crossref saying requests are too frequent", "",
+                        xrefRateLimiter::getThrottledResponses);
+        metrics.counter("crossref_rate_limit_rejections",
+                        "Requests to Crossref given up after waiting for the rate limit", "",
+                        xrefRateLimiter::getRejectedRequests);
+        metrics.gauge("crossref_rate_limit", "Requests allowed to Crossref per second", "",
+                      () -> xrefRateLimiter.getLimit() * 1000.0 / xrefRateLimiter.getInterval());
+        metrics.gauge("crossref_concurrency_limit", "Requests allowed in flight to Crossref", "",
+                      xrefRateLimiter::getConcurrency);
+        for (CrossrefCircuitBreaker.State state : CrossrefCircuitBreaker.State.values()) {
+            String label = "state=\"" + state.name().toLowerCase(Locale.ROOT) + "\"";
+            metrics.gauge("crossref_circuit_state", "Whether the Crossref circuit breaker is in each state", label,
+                          () -> xrefBreaker.getState() == state ? 1 : 0);
+            metrics.counter("crossref_circuit_transitions", "Times the Crossref circuit breaker entered each state",
+                            label, () -> xrefBreaker.getTransitions(state));
+        }
+        metrics.counter("crossref_revalidations", "Expired Crossref records checked with Crossref, by outcome",
+                        "result=\"not_modified\"", xrefNotModified::get);
+        metrics.counter("crossref_revalidations", "Expired Crossref records checked with Crossref, by outcome",
+                        "result=\"modified\"", xrefModified::get);
+        metrics.counter("crossref_circuit_rejections", "Requests to Crossref failed fast by the circuit breaker", "",
+                        xrefBreaker::getRejectedRequests);
+        metrics.counter("journal_lookups_abandoned",
+                        "Journal lookups in PASS abandoned for taking too long or finding no room to run", "",
+                        abandonedLookups::get);
+        metrics.counter("crossref_invalid_issns", "ISSNs from Crossref dropped for failing their checksum", "",
+                        invalidIssns::get);
+
+        if (refreshExecutor != null) {
+            metrics.counter("result_refreshes", "Cached results refreshed ahead of their expiry, by outcome",
+                            "result=\"refreshed\"", refreshed::get);
+            metrics.counter("result_refreshes", "Cached results refreshed ahead of their expiry, by outcome",
+                            "result=\"skipped\"", refreshSkipped::get);
+            metrics.counter("result_refreshes", "Cached results refreshed ahead of their expiry, by outcome",
+                            "result=\"failed\"", refreshFailed::get);
+        }
+
+        if (journalUpdates != null) {
+            metrics.gauge("journal_updates_pending", "Journals with new ISSNs waiting to be written to PASS", "",
+                          journalUpdates::size);
+            metrics.counter("journal_updates_merged", "New ISSNs merged with others waiting for the same journal", "",
+                            journalUpdates::getMerged);
+            metrics.counter("journal_updates_written", "Journals written to PASS with new ISSNs", "",
+                            journalUpdates::getWritten);
+            metrics.counter("journal_updates_retried", "Failed journal writes tried again", "",
+                            journalUpdates::getRetried);
+            metrics.counter("journal_updates_failed", "Journal writes given up", "", journalUpdates::getFailed);
+        }
+
+        if (xrefStore != null) {
+            metrics.gauge("crossref_store_records", "Crossref records in the store on disk", "", xrefStore::count);
+            metrics.gauge("crossref_store_bytes", "Size of the Crossref record store on disk, including garbage", "",
+                          xrefStore::size);
+        }
+    }
+
+    private void registerCacheMetrics(String cache, ExpiringLruCache<?, ?> c) {
+        String label = "cache=\"" + cache + "\"";
+        metrics.counter("cache_hits", "Cache lookups which found an entry", label, c::getHits);
+        metrics.counter("cache_misses", "Cache lookups which found no entry", label, c::getMisses);
+        metrics.counter("cache_evictions", "Cache entries evicted to make room for others", label, c::getEvictions);
+        metrics.gauge("cache_entries", "Entries in the cache", label, c::size);
+    }
+
+    @Override
+    public void destroy() {
+        LOG.info("Crossref cache statistics: " + xrefCache.getHits() + " hits, " + xrefCache.getMisses() +
+                 " misses, " + xrefCache.getEvictions() + " evictions");
+        LOG.info("Result cache statistics: " + resultCache.getHits() + " hits, " + resultCache.getMisses() +
+                 " misses, " + resultCache.getEvictions() + " evictions");
+        LOG.info("Negative cache statistics: " + negativeCache.getHits() + " hits, " + negativeCache.getMisses() +
+                 " misses, " + negativeCache.getEvictions() + " evictions");
+        LOG.info("Coalesced requests: " + coalescedRequests.get());
+        LOG.info("Crossref rate limiting: " + xrefRateLimiter.getThrottledResponses() + " throttled responses, " +
+                 xrefRateLimiter.getRejectedRequests() + " requests given up");
+        LOG.info("Crossref circuit breaker: opened " + xrefBreaker.getTransitions(CrossrefCircuitBreaker.State.OPEN) +
+                 " times, " + xrefBreaker.getRejectedRequests() + " requests failed fast");
+        if (journalUpdates != null) {
+            journalUpdates.close();
+            LOG.info("Journal updates: " + journalUpdates.getWritten() + " written, " + journalUpdates.getMerged() +
+                     " merged, " + journalUpdates.getFailed() + " failed");
+        }
+        lockExpiry.shutdownNow();
+        lookupExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+        passExecutor.shutdownNow();
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+        xrefProbes.shutdownNow();
+        if (xrefStore != null) {
+            try {
+                xrefStore.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the Crossref record store", e);
+            }
+        }
+        if (getServletConfig() != null) {
+            getServletContext().removeAttribute(ServiceMetrics.CONTEXT_ATTRIBUTE);
+        }
+        super.destroy();
     }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
-        throws IOException {
+        throws IOException, ServletException {
+
+        if (BATCH_PATH.equals(request.getServletPath())) {
+            // batches are only accepted by POST
+            super.doGet(request, response);
+            return;
+        }
 
         response.setContentType("application/json");
         response.setCharacterEncoding("utf-8");
@@ -105,81 +484,453 @@ public class PassDoiServlet extends HttpServlet {
         //the value of this parameter is expected to be already URIencoded
         String doi = request.getParameter("doi");
 
-        //stage 1: verify doi is valid
-        if (verify(doi) == null) {
-            // do not have have a valid xref doi
-            try (OutputStream out = response.getOutputStream()) {
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", "Supplied DOI is not in valid Crossref format.")
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(400);
-                return;
+        metrics.requestStarted();
+        if (!request.isAsyncSupported()) {
+            try {
+                respond(lookup(doi), response);
+            } finally {
+                metrics.requestFinished();
             }
+            return;
         }
 
-        //stage 2: check cache map for existence of doi
-        //put doi on map if absent
-        if (activeJobs.contains(doi)) {
-            try (OutputStream out = response.getOutputStream()) {
-                String message = "There is already an active request for " + doi;
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message + "; try again later.")
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(429);
-                LOG.info(message);
+        // release the container thread while Crossref and PASS do their work
+        AsyncContext async = request.startAsync();
+        async.setTimeout(asyncTimeout);
+        AtomicBoolean answered = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                metrics.requestFinished();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    String message = "Timed out resolving DOI " + doi;
+                    LOG.warn(message);
+                    respond(DoiResponse.error(503, message + "; try again later."), response);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                answered.set(true);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        lookupAsync(doi).whenComplete((result, e) -> {
+            if (!answered.compareAndSet(false, true)) {
                 return;
             }
+            try {
+                respond(e == null ? result : asyncError(doi, e), response);
+            } catch (IOException ioe) {
+                LOG.warn("Could not write the response for " + doi, ioe);
+            } finally {
+                async.complete();
+            }
+        });
+    }
 
-        } else {
-            // this DOI is not actively being processed
-            // let's temporarily prohibit new requests for this DOI
-            activeJobs.add(doi);
-            Thread t = new Thread(new ExpiringLock(doi, cachePeriod));
-            t.start();
-        }
-
-        //stage 3: try to get crossref record, catch errors first, and halt processing
-        JsonObject xrefJsonObject = retrieveXrefMetdata(doi);
-        if (xrefJsonObject == null) {
-            try (OutputStream out = response.getOutputStream()) {
-                String message = "There was an error getting the metadata from Crossref for " + doi;
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message)
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(500);
-                LOG.info(message);
+    /**
+     * write a response for the client, counting it by status
+     *
+     * @param result   the response
+     * @param response where to write it
+     * @throws IOException if the response could not be written
+     */
+    private void respond(DoiResponse result, HttpServletResponse response) throws IOException {
+        metrics.response(result.getStatus());
+        long start = metrics.start(Stage.WRITE);
+        try {
+            result.write(response);
+        } finally {
+            metrics.stop(Stage.WRITE, start);
+        }
+    }
+
+    /**
+     * turn the failure of an asynchronous lookup into an error response
+     *
+     * @param doi the doi as supplied by the client
+     * @param e   the failure
+     * @return the response for the client
+     */
+    private static DoiResponse asyncError(String doi, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof RejectedExecutionException) {
+            String message = "Too many requests are being resolved to take on DOI " + doi;
+            LOG.warn(message);
+            return DoiResponse.error(503, message + "; try again later.");
+        }
+        String message = "There was an error processing the request for " + doi;
+        LOG.error(message, cause);
+        return DoiResponse.error(500, message);
+    }
+
+    /**
+     * Accept a batch of dois, and stream back the result for each doi as a line of JSON as soon as it is
+     * resolved. Each line carries the doi, the status code and the body which a GET for that doi would have
+     * returned. Lines are written in the order the dois are resolved, which need not be the order they were given.
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException, ServletException {
+
+        if (!BATCH_PATH.equals(request.getServletPath())) {
+            super.doPost(request, response);
+            return;
+        }
+
+        LOG.info("Servicing new batch request ... ");
+
+        boolean json = request.getContentType() != null && request.getContentType().startsWith("application/json");
+        DoiBatchReader dois;
+        try {
+            dois = new DoiBatchReader(request.getReader(), json);
+        } catch (JsonException e) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("utf-8");
+            DoiResponse.error(400, e.getMessage()).write(response);
+            return;
+        }
+
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("utf-8");
+        response.setStatus(200);
+
+        CompletionService<Map.Entry<String, DoiResponse>> results = new ExecutorCompletionService<>(batchExecutor);
+        int pending = 0;
+        int count = 0;
+
+        try (OutputStream out = response.getOutputStream()) {
+            try {
+                String doi;
+                while ((doi = dois.next()) != null) {
+                    // keep a bounded number of dois in hand, writing out results as they come in
+                    while (pending >= batchParallelism) {
+                        writeBatchItem(results.take(), out);
+                        pending--;
+                    }
+                    String batchDoi = doi;
+                    results.submit(() -> new AbstractMap.SimpleImmutableEntry<>(batchDoi, lookupBatchItem(batchDoi)));
+                    pending++;
+                    count++;
+
+                    Future<Map.Entry<String, DoiResponse>> done;
+                    while ((done = results.poll()) != null) {
+                        writeBatchItem(done, out);
+                        pending--;
+                    }
+                }
+            } catch (JsonException e) {
+                // the batch was malformed part way through, which we can only report in the stream
+                DoiResponse.error(400, e.getMessage()).writeItem(null, out);
+            } finally {
+                dois.close();
+            }
+
+            while (pending > 0) {
+                writeBatchItem(results.take(), out);
+                pending--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while resolving a batch of DOIs", e);
+        }
+        LOG.info("Returned results for a batch of " + count + " DOIs");
+    }
+
+    /**
+     * resolve one doi of a batch, turning an unexpected failure into an error result for that doi
+     *
+     * @param doi the doi as supplied by the client
+     * @return the response for the doi
+     */
+    private DoiResponse lookupBatchItem(String doi) {
+        try {
+            return lookup(doi);
+        } catch (RuntimeException e) {
+            String message = "There was an error processing the request for " + doi;
+            LOG.error(message, e);
+            return DoiResponse.error(500, message);
+        }
+    }
+
+    private static void writeBatchItem(Future<Map.Entry<String, DoiResponse>> done, OutputStream out)
+        throws IOException, InterruptedException {
+        Map.Entry<String, DoiResponse> item;
+        try {
+            item = done.get();
+        } catch (ExecutionException e) {
+            // lookupBatchItem does not throw
+            throw new IllegalStateException(e.getCause());
+        }
+        item.getValue().writeItem(item.getKey(), out);
+        out.flush();
+    }
+
+    /**
+     * Resolve a doi supplied by a client. Concurrent lookups for the same doi share the work of a single
+     * resolution: the first request does the work, and the others wait for its result.
+     *
+     * @param doi the doi as supplied by the client
+     * @return the response for the client
+     */
+    DoiResponse lookup(String doi) {
+        CompletableFuture<DoiResponse> result = lookup(doi, d -> CompletableFuture.completedFuture(resolve(d)));
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DoiResponse.error(503, "Interrupted while waiting for the active request for " + doi);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Resolve a doi supplied by a client without blocking the calling thread. The Crossref record is fetched
+     * asynchronously, and the PASS work is done on a bounded pool. Lookups are coalesced with both asynchronous
+     * and blocking lookups for the same doi.
+     *
+     * @param doi the doi as supplied by the client
+     * @return the response for the client, once it is ready
+     */
+    CompletableFuture<DoiResponse> lookupAsync(String doi) {
+        return lookup(doi, this::resolveAsync);
+    }
+
+    private CompletableFuture<DoiResponse> lookup(String suppliedDoi,
+                                                  Function<String, CompletableFuture<DoiResponse>> resolver) {
+        //stage 1: verify doi is valid, and key everything that follows on its canonical form
+        long verifyStart = metrics.start(Stage.VERIFY);
+        String doi = verify(suppliedDoi);
+        metrics.stop(Stage.VERIFY, verifyStart);
+        if (doi == null) {
+            // do not have have a valid xref doi
+            return CompletableFuture.completedFuture(
+                DoiResponse.error(400, "Supplied DOI is not in valid Crossref format."));
+        }
+
+        //a doi resolved recently needs neither Crossref nor PASS
+        DoiResponse cached = cachedResult(doi);
+        if (cached != null) {
+            LOG.debug("Using cached result for " + doi);
+            refreshAhead(doi);
+            return CompletableFuture.completedFuture(cached);
+        }
+        cached = negativeCache.get(doi);
+        if (cached != null) {
+            LOG.debug("Using cached " + cached.getStatus() + " result for " + doi);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        //stage 2: check for an active request for this doi, and wait for its result if there is one
+        //otherwise, register this request as the active one
+        CompletableFuture<DoiResponse> job = new CompletableFuture<>();
+        CompletableFuture<DoiResponse> activeJob = activeJobs.putIfAbsent(doi, job);
+        if (activeJob != null) {
+            coalescedRequests.incrementAndGet();
+            LOG.info("Waiting for the active request for " + doi);
+            return await(doi, activeJob);
+        }
+
+        // this DOI is not actively being processed
+        // other requests for this DOI will wait for this one, for at most the cache period
+        ScheduledFuture<?> lock = lockExpiry.schedule(() -> activeJobs.remove(doi, job), cachePeriod, MILLISECONDS);
+
+        CompletableFuture<DoiResponse> result;
+        try {
+            result = resolver.apply(doi);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result.whenComplete((response, e) -> {
+            if (e != null) {
+                job.completeExceptionally(e);
+            } else {
+                job.complete(response);
             }
-        } else if (xrefJsonObject.getJsonString("error") != null) {
-            int responseCode;
-            String message;
-            if (xrefJsonObject.getString("error").equals("Resource not found.")) {
-                responseCode = 404;
-                message = "The resource for DOI " + doi + " could not be found on Crossref.";
+            activeJobs.remove(doi, job);
+            lock.cancel(false);
+        });
+    }
+
+    /**
+     * @param doi the doi
+     * @return the cached result for the doi, or null if there is none or its journal has been updated since the
+     * result was built, in which case the result is dropped
+     */
+    DoiResponse cachedResult(String doi) {
+        DoiResponse cached = resultCache.get(doi);
+        if (cached != null && !journalVersions.isCurrent(cached.getJournalId(), cached.getJournalVersion())) {
+            resultCache.remove(doi);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * refresh the cached result for a doi in the background if it is in demand and about to expire, so that
+     * readers go on getting a cached result rather than waiting for Crossref and PASS when it does
+     *
+     * @param doi the doi
+     */
+    private void refreshAhead(String doi) {
+        if (refreshExecutor == null || !resultCache.claimRefresh(doi, refreshAhead, refreshMinReads)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> refresh(doi));
+        } catch (RejectedExecutionException e) {
+            resultCache.abandonRefresh(doi);
+            refreshSkipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * resolve a doi again from a fresh Crossref record, replacing its cached result. A refresh is put off when
+     * Crossref requests have no more than their reserve of the rate limit; a later read may try again, and if
+     * none does, the result is left to expire. A refresh which fails leaves the result to expire.
+     *
+     * @param doi the doi
+     */
+    void refresh(String doi) {
+        if (!xrefRateLimiter.hasHeadroom(refreshReserve)) {
+            resultCache.abandonRefresh(doi);
+            refreshSkipped.incrementAndGet();
+            return;
+        }
+        try {
+            CrossrefRecord xrefRecord = fetchXrefRecord(doi);
+            DoiResponse result = resolve(doi, xrefRecord);
+            //only a result from a fresh record replaces the cached one
+            if (result.getJournalId() != null && !xrefRecord.isStale()) {
+                LOG.debug("Refreshed the cached result for " + doi);
+                refreshed.incrementAndGet();
             } else {
-                responseCode = 500;
-                message = "A record for this resource could not be found on Crossref: " +
-                          xrefJsonObject.getJsonString("error");
-            }
-            try (OutputStream out = response.getOutputStream()) {
-                JsonObject jsonObject = Json.createObjectBuilder()
-                                            .add("error", message)
-                                            .build();
-                out.write(jsonObject.toString().getBytes());
-                response.setStatus(responseCode);
+                refreshFailed.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Could not refresh the cached result for " + doi, e);
+            refreshFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * wait for the result of another request's resolution of a doi
+     *
+     * @param doi       the doi
+     * @param activeJob the active resolution
+     * @return the result of the active resolution, or an error response if it failed or took too long
+     */
+    private CompletableFuture<DoiResponse> await(String doi, CompletableFuture<DoiResponse> activeJob) {
+        CompletableFuture<DoiResponse> result = activeJob.handle((response, e) -> {
+            if (e != null) {
+                String message = "There was an error processing the active request for " + doi;
+                LOG.error(message, e instanceof CompletionException ? e.getCause() : e);
+                return DoiResponse.error(500, message);
+            }
+            return response;
+        });
+        ScheduledFuture<?> timeout = lockExpiry.schedule(() -> {
+            String message = "There is already an active request for " + doi;
+            if (result.complete(DoiResponse.error(429, message + "; try again later."))) {
+                LOG.info(message);
+            }
+        }, coalesceTimeout, MILLISECONDS);
+        result.whenComplete((response, e) -> timeout.cancel(false));
+        return result;
+    }
+
+    /**
+     * Resolve a valid doi to a PASS journal: get the Crossref record for the doi, and find or create the
+     * corresponding journal in PASS
+     *
+     * @param doi the doi
+     * @return the response for the client
+     */
+    DoiResponse resolve(String doi) {
+        return resolve(doi, retrieveXrefRecord(doi));
+    }
+
+    /**
+     * Resolve a valid doi to a PASS journal without blocking the calling thread. Once the Crossref record has
+     * arrived, the PASS work is handed to the bounded PASS pool; if that pool is saturated, the result fails with a
+     * {@link RejectedExecutionException}.
+     *
+     * @param doi the doi
+     * @return the response for the client, once it is ready
+     */
+    CompletableFuture<DoiResponse> resolveAsync(String doi) {
+        return retrieveXrefRecordAsync(doi).thenApplyAsync(xrefRecord -> resolve(doi, xrefRecord), passExecutor);
+    }
+
+    /**
+     * Resolve a valid doi to a PASS journal, given its Crossref record
+     *
+     * @param doi        the doi
+     * @param xrefRecord the record, as returned by {@link #retrieveXrefRecord(String)}
+     * @return the response for the client
+     */
+    private DoiResponse resolve(String doi, CrossrefRecord xrefRecord) {
+        //stage 3: check the crossref record, catch errors first, and halt processing
+        if (xrefRecord == null) {
+            String message = "There was an error getting the metadata from Crossref for " + doi;
+            LOG.info(message);
+            return DoiResponse.error(500, message);
+        } else if (xrefRecord.isUnavailable()) {
+            String message = xrefRecord.getError() + "; try again later.";
+            LOG.info(message + " (" + doi + ")");
+            return DoiResponse.error(503, message);
+        } else if (xrefRecord.getError() != null) {
+            if (xrefRecord.getError().equals("Resource not found.")) {
+                String message = "The resource for DOI " + doi + " could not be found on Crossref.";
                 LOG.info(message);
+                DoiResponse result = DoiResponse.error(404, message);
+                negativeCache.put(doi, result);
+                return result;
             }
+            String message = "A record for this resource could not be found on Crossref: " +
+                             Json.createValue(xrefRecord.getError());
+            LOG.info(message);
+            return DoiResponse.error(500, message);
         } else {
             // have a non-empty string to process
             LOG.debug("Building pass journal");
             // we probably have something JSONy at this point. Let's build a journal object from it
-            Journal journal = buildPassJournal(xrefJsonObject);
+            long buildStart = metrics.start(Stage.BUILD);
+            Journal journal;
+            try {
+                journal = buildPassJournal(xrefRecord);
+            } finally {
+                metrics.stop(Stage.BUILD, buildStart);
+            }
             LOG.debug("Comparing journal object with possible PASS version");
             // and compare it with what we already have in PASS, updating PASS if necessary
 
-            Journal updatedJournal = updateJournalInPass(journal);
+            //taken before the journal is read, so that a result built from a journal updated meanwhile is out of date
+            AtomicLong journalVersion = new AtomicLong(journalVersions.current());
+            Journal updatedJournal;
+            try {
+                updatedJournal = updateJournalInPass(journal, journalVersion);
+            } catch (IncompleteJournalLookupException e) {
+                String message = "PASS did not answer in time to tell whether the journal for DOI " + doi +
+                                 " exists";
+                LOG.warn(message + ": " + e.getMessage());
+                return DoiResponse.error(503, message + "; try again later.");
+            }
 
             String journalId = null;
 
@@ -188,34 +939,24 @@ public class PassDoiServlet extends HttpServlet {
             }
 
             if (journalId != null) {
-
-                try (OutputStream out = response.getOutputStream()) {
-                    JsonObject jsonObject = Json.createObjectBuilder()
-                                                .add("journal-id", journalId)
-                                                .add("crossref", xrefJsonObject)
-                                                .build();
-
-                    out.write(jsonObject.toString().getBytes());
-                    response.setStatus(200);
-                    LOG.info("Returning result for DOI " + doi);
+                LOG.info("Returning result for DOI " + doi);
+                DoiResponse result = DoiResponse.journal(journalId, journalVersion.get(), xrefRecord);
+                if (!xrefRecord.isStale()) {
+                    resultCache.put(doi, result);
                 }
+                return result;
             } else {
                 // journal id is null - this should never happen unless Crosssref journal is insufficient
                 // for example, if a book doi ws supplied which has no issns
-
-                try (OutputStream out = response.getOutputStream()) {
-                    String message = "Insufficient information to locate or specify a journal entry.";
-                    JsonObject jsonObject = Json.createObjectBuilder()
-                                                .add("error", message)
-                                                .build();
-
-                    out.write(jsonObject.toString().getBytes());
-                    response.setStatus(422);
-                    LOG.info(message);
+                String message = "Insufficient information to locate or specify a journal entry.";
+                LOG.info(message);
+                DoiResponse result = DoiResponse.error(422, message);
+                if (!xrefRecord.isStale()) {
+                    negativeCache.put(doi, result);
                 }
+                return result;
             }
         }
-        activeJobs.remove(doi);
     }
 
     /**
@@ -225,36 +966,281 @@ public class PassDoiServlet extends HttpServlet {
      * @return a string representing the works object if successful; an empty string if not found; null if IO exception
      */
     JsonObject retrieveXrefMetdata(String doi) {
+        CrossrefRecord record = retrieveXrefRecord(doi);
+        return record != null ? record.getJson() : null;
+    }
+
+    /**
+     * consult crossref to get the works record for a supplied doi, unless the cache or the local store already
+     * has it
+     *
+     * @param doi - the supplied doi string, prefix trimmed if necessary
+     * @return the works record if successful; a record carrying the error if Crossref did not return a record;
+     * the last known record, marked stale, if Crossref could not be reached or failed; null if IO exception and
+     * there is no last known record
+     */
+    CrossrefRecord retrieveXrefRecord(String doi) {
+        CrossrefRecord cached = cachedXrefRecord(doi);
+        if (cached != null) {
+            return cached;
+        }
+        return fetchXrefRecord(doi);
+    }
+
+    /**
+     * ask crossref for the works record for a doi, even if the cache has it, revalidating any record already known
+     *
+     * @param doi - the supplied doi string, prefix trimmed if necessary
+     * @return the works record, as would be returned by {@link #retrieveXrefRecord(String)}
+     */
+    private CrossrefRecord fetchXrefRecord(String doi) {
+        CrossrefRecord known = revalidatableXrefRecord(doi);
+        long start = metrics.start(Stage.CROSSREF);
+        try (Response okHttpResponse = client.newCall(xrefRequest(doi, known)).execute()) {
+            return readXrefResponse(doi, okHttpResponse, known);
+        } catch (IOException e) {
+            return xrefFailure(doi, e);
+        } finally {
+            metrics.stop(Stage.CROSSREF, start);
+        }
+    }
+
+    /**
+     * consult crossref to get the works record for a supplied doi, without blocking the calling thread
+     *
+     * @param doi - the supplied doi string, prefix trimmed if necessary
+     * @return the works record, as would be returned by {@link #retrieveXrefRecord(String)}, once it has arrived
+     */
+    CompletableFuture<CrossrefRecord> retrieveXrefRecordAsync(String doi) {
+        CrossrefRecord cached = cachedXrefRecord(doi);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CrossrefRecord known = revalidatableXrefRecord(doi);
+        long start = metrics.start(Stage.CROSSREF);
+        CompletableFuture<CrossrefRecord> result = new CompletableFuture<>();
+        client.newCall(xrefRequest(doi, known)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.complete(xrefFailure(doi, e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response okHttpResponse = response) {
+                    result.complete(readXrefResponse(doi, okHttpResponse, known));
+                } catch (IOException e) {
+                    result.complete(xrefFailure(doi, e));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result.whenComplete((record, e) -> metrics.stop(Stage.CROSSREF, start));
+    }
+
+    /**
+     * @param doi the doi
+     * @return the record for the doi from the cache, or failing that from the store if it is fresh enough; null if
+     * there is none
+     */
+    private CrossrefRecord cachedXrefRecord(String doi) {
+        CrossrefRecord cached = xrefCache.get(doi);
+        if (cached != null) {
+            LOG.debug("Using cached Crossref record for " + doi);
+            return cached;
+        }
+        CrossrefRecord stored = storedXrefRecord(doi, xrefStoreTtl);
+        if (stored != null) {
+            LOG.debug("Using stored Crossref record for " + doi);
+            xrefCache.put(doi, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * @param doi the doi
+     * @return the expired record for the doi in the cache, if Crossref sent validators with it, so that Crossref
+     * can be asked whether it has changed; null otherwise
+     */
+    private CrossrefRecord revalidatableXrefRecord(String doi) {
+        CrossrefRecord known = xrefCache.getStale(doi);
+        return known != null && known.hasValidators() ? known : null;
+    }
+
+    /**
+     * @param doi the doi
+     * @return the last known record for the doi, from the cache or the store, even if it has expired; null if there
+     * is none or it is too old even to be used stale
+     */
+    private CrossrefRecord staleXrefRecord(String doi) {
+        CrossrefRecord stale = xrefCache.getStale(doi);
+        return stale != null ? stale : storedXrefRecord(doi, xrefStoreTtl + xrefStaleTtl);
+    }
+
+    /**
+     * @param doi    the doi
+     * @param maxAge the age beyond which a stored record is not used, in ms
+     * @return the stored record for the doi, or null if there is none, it is too old, or the store is not in use
+     */
+    private CrossrefRecord storedXrefRecord(String doi, long maxAge) {
+        if (xrefStore == null) {
+            return null;
+        }
+        try {
+            CrossrefRecordStore.StoredRecord stored = xrefStore.get(doi);
+            if (stored == null || stored.getWritten() + maxAge <= System.currentTimeMillis()) {
+                return null;
+            }
+            return CrossrefRecord.parse(stored.getValue());
+        } catch (IOException | JsonParsingException e) {
+            LOG.warn("Could not read the stored Crossref record for " + doi, e);
+            return null;
+        }
+    }
+
+    /**
+     * keep a record retrieved from Crossref in the store, if the store is in use
+     *
+     * @param doi   the doi
+     * @param bytes the record, as Crossref returned it
+     */
+    private void storeXrefRecord(String doi, byte[] bytes) {
+        if (xrefStore == null) {
+            return;
+        }
+        try {
+            xrefStore.put(doi, bytes, System.currentTimeMillis());
+        } catch (IOException e) {
+            LOG.warn("Could not store the Crossref record for " + doi, e);
+        }
+    }
+
+    /**
+     * fall back on the last known record for a doi when Crossref cannot be reached
+     *
+     * @param doi the doi
+     * @param e   the reason Crossref could not be reached
+     * @return the stale record for the doi if there is one; otherwise a record saying Crossref is unavailable if
+     * the circuit to Crossref is open, or null
+     */
+    private CrossrefRecord xrefFailure(String doi, IOException e) {
+        CrossrefRecord stale = staleXrefRecord(doi);
+        if (stale != null) {
+            LOG.info("Serving a stale Crossref record for " + doi + ": " + e.getMessage());
+            return stale.stale();
+        }
+        if (e instanceof CrossrefCircuitBreaker.CircuitOpenException) {
+            return CrossrefRecord.unavailable("Crossref is currently unavailable");
+        }
+        return null;
+    }
+
+    /**
+     * send a request to Crossref on behalf of the circuit breaker
+     *
+     * @param request the request
+     * @return whether Crossref answered it without a server error
+     */
+    private boolean probeCrossref(Request request) {
+        try (Response response = probeClient.newCall(request).execute()) {
+            return response.code() < 500;
+        } catch (IOException e) {
+            LOG.info("Crossref is still unavailable: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param doi   the doi
+     * @param known an expired record for the doi to revalidate, or null to ask for the record outright
+     * @return the works request for the doi, conditional on the record having changed if there is a known record
+     */
+    private Request xrefRequest(String doi, CrossrefRecord known) {
         String agent = System.getenv("PASS_DOI_SERVICE_MAILTO") != null ? System.getenv(
             "PASS_DOI_SERVICE_MAILTO") : MAILTO;
 
         HttpUrl.Builder urlBuilder = HttpUrl.parse(BASE_URL + VERSION + BASIC_PREFIX + doi).newBuilder();
         String url = urlBuilder.build().toString();
-        Request okHttpRequest = new Request.Builder()
+        Request.Builder request = new Request.Builder()
             .url(url)
-            .addHeader("User-Agent", agent)
-            .build();
-        Call call = client.newCall(okHttpRequest);
-        JsonReader reader;
-        JsonObject xrefJsonObject;
-        String responseString = null;
-
-        try (Response okHttpResponse = call.execute()) {
-            responseString = okHttpResponse.body().string();
-            reader = Json.createReader(new StringReader(responseString));
-            xrefJsonObject = reader.readObject();
-            reader.close();
-            return xrefJsonObject;
-        } catch (JsonParsingException e) {
-            if (responseString != null) {
-                return Json.createObjectBuilder()
-                           .add("error", responseString)
-                           .build();
+            .addHeader("User-Agent", agent);
+        if (known != null && known.getEtag() != null) {
+            request.addHeader("If-None-Match", known.getEtag());
+        }
+        if (known != null && known.getLastModified() != null) {
+            request.addHeader("If-Modified-Since", known.getLastModified());
+        }
+        return request.build();
+    }
+
+    /**
+     * read a Crossref works response, caching the record if Crossref returned one
+     *
+     * @param doi      the doi
+     * @param response the response from Crossref
+     * @param known    the expired record the request asked Crossref to revalidate, or null
+     * @return the works record if successful, or the known record, cached afresh, if Crossref says it has not
+     * changed; a record carrying the error if Crossref did not return a record; null if the response was too large
+     * @throws IOException if the response could not be read
+     */
+    private CrossrefRecord readXrefResponse(String doi, Response response, CrossrefRecord known)
+        throws IOException {
+        if (response.code() == 304 && known != null) {
+            LOG.debug("Crossref record for " + doi + " has not changed");
+            xrefNotModified.incrementAndGet();
+            xrefCache.put(doi, known);
+            return known;
+        }
+        byte[] responseBytes = readBody(response.body());
+        if (responseBytes == null) {
+            LOG.warn("Ignoring the Crossref response for " + doi + ", which is larger than " + xrefMaxBody +
+                     " bytes");
+            return null;
+        }
+        if (response.code() == 429) {
+            return CrossrefRecord.unavailable("Crossref is limiting the rate of requests");
+        }
+        if (response.code() >= 500) {
+            CrossrefRecord stale = staleXrefRecord(doi);
+            if (stale != null) {
+                LOG.info("Serving a stale Crossref record for " + doi + ": Crossref returned " + response.code());
+                return stale.stale();
             }
-        } catch (IOException e) {
+        }
+        try {
+            CrossrefRecord record = CrossrefRecord.parse(responseBytes);
+            if (response.isSuccessful()) {
+                if (known != null) {
+                    xrefModified.incrementAndGet();
+                }
+                record.withValidators(response.header("ETag"), response.header("Last-Modified"));
+                xrefCache.put(doi, record);
+                storeXrefRecord(doi, responseBytes);
+            }
+            return record;
+        } catch (JsonParsingException e) {
+            return CrossrefRecord.error(new String(responseBytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * read the body of a Crossref response, unless it is larger than the maximum body size
+     *
+     * @param body the response body
+     * @return the bytes of the body, or null if it is too large
+     * @throws IOException if the body could not be read
+     */
+    private byte[] readBody(ResponseBody body) throws IOException {
+        if (body.contentLength() > xrefMaxBody) {
             return null;
         }
-        return null;
+        BufferedSource source = body.source();
+        if (source.request(xrefMaxBody + 1)) {
+            return null;
+        }
+        return source.readByteArray();
     }
 
     /**
@@ -266,59 +1252,67 @@ public class PassDoiServlet extends HttpServlet {
      * @return the PASS journal object
      */
     Journal buildPassJournal(JsonObject metadata) {
+        return buildPassJournal(CrossrefRecord.fromJson(metadata));
+    }
 
-        LOG.debug("JSON input (from Crossref): " + metadata.toString());
+    /**
+     * Takes the fields of a Crossref works record which describe its journal, and populates a new Journal
+     * object. Currently we take typed issns and the journal name. ISSNs which fail their checksum are left out, since
+     * they cannot identify a journal.
+     *
+     * @param record - the Crossref works record
+     * @return the PASS journal object
+     */
+    Journal buildPassJournal(CrossrefRecord record) {
 
-        final String XREF_MESSAGE = "message";
-        final String XREF_TITLE = "container-title";
-        final String XREF_ISSN_TYPE_ARRAY = "issn-type";
-        final String XREF_ISSN_ARRAY = "ISSN";
-        final String XREF_ISSN_TYPE = "type";
-        final String XREF_ISSN_VALUE = "value";
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Journal fields from Crossref: " + record.getContainerTitle() + " " +
+                      record.getTypedIssns().size() + " typed ISSNs, " + record.getIssns());
+        }
 
         Journal passJournal = new Journal();
 
-        JsonObject messageObject = metadata.getJsonObject(XREF_MESSAGE);
-        JsonArray containerTitleArray = messageObject.getJsonArray(XREF_TITLE);
-        JsonArray issnTypeArray = messageObject.getJsonArray(XREF_ISSN_TYPE_ARRAY);
-        JsonArray issnArray = messageObject.getJsonArray(XREF_ISSN_ARRAY);
-
-        if (!containerTitleArray.isNull(0)) {
-            passJournal.setJournalName(containerTitleArray.getString(0));
+        if (record.getContainerTitle() != null) {
+            passJournal.setJournalName(record.getContainerTitle());
         }
 
         Set<String> processedIssns = new HashSet<>();
 
-        if (issnTypeArray != null) {
-            for (int i = 0; i < issnTypeArray.size(); i++) {
-                JsonObject issn = issnTypeArray.getJsonObject(i);
-
-                String type = "";
-
-                //translate crossref issn-type strings to PASS issn-type strings
-                if (IssnType.PRINT.getCrossrefTypeString().equals(issn.getString(XREF_ISSN_TYPE))) {
-                    type = IssnType.PRINT.getPassTypeString();
-                } else if (IssnType.ELECTRONIC.getCrossrefTypeString().equals(issn.getString(XREF_ISSN_TYPE))) {
-                    type = IssnType.ELECTRONIC.getPassTypeString();
-                }
+        for (CrossrefRecord.TypedIssn issn : record.getTypedIssns()) {
+            String type = "";
 
-                //collect the value for this issn
-                String value = issn.getString(XREF_ISSN_VALUE);
-                processedIssns.add(value);
+            //translate crossref issn-type strings to PASS issn-type strings
+            if (IssnType.PRINT.getCrossrefTypeString().equals(issn.getType())) {
+                type = IssnType.PRINT.getPassTypeString();
+            } else if (IssnType.ELECTRONIC.getCrossrefTypeString().equals(issn.getType())) {
+                type = IssnType.ELECTRONIC.getPassTypeString();
+            }
 
-                if (value.length() > 0) {
-                    passJournal.getIssns().add(String.join(":", type, value));
+            //collect the value for this issn
+            String value = issn.getValue();
+            processedIssns.add(value);
+
+            if (value.length() > 0) {
+                long packed = Issn.parse(type, value);
+                if (packed == Issn.INVALID) {
+                    LOG.debug("Ignoring invalid ISSN from Crossref: " + value);
+                    invalidIssns.incrementAndGet();
+                } else {
+                    passJournal.getIssns().add(Issn.toString(packed));
                     LOG.debug("Adding typed ISSN to journal object: " + String.join(":", type, value));
                 }
             }
         }
 
-        if (issnArray != null) {
-            for (int i = 0; i < issnArray.size(); i++) {
-                // if we have issns which were not given as typed, we add them without a type
-                String issn = issnArray.getString(i);
-                if (!processedIssns.contains(issn)) {
-                    passJournal.getIssns().add(":" + issn);//do this to conform with type:value format
+        for (String issn : record.getIssns()) {
+            // if we have issns which were not given as typed, we add them without a type
+            if (!processedIssns.contains(issn)) {
+                long packed = Issn.parse("", issn);
+                if (packed == Issn.INVALID) {
+                    LOG.debug("Ignoring invalid ISSN from Crossref: " + issn);
+                    invalidIssns.incrementAndGet();
+                } else {
+                    passJournal.getIssns().add(Issn.toString(packed));//conforms with type:value format
                 }
             }
         }
@@ -336,29 +1330,75 @@ public class PassDoiServlet extends HttpServlet {
      * @param journal - the Journal object generated from Crossref metadata
      * @return the updated Journal object stored in PASS if the PASS object needs updating; null if we don't have
      * enough info to create a journal
+     * @throws IncompleteJournalLookupException if PASS did not answer in time to tell whether the journal exists
      */
     Journal updateJournalInPass(Journal journal) {
+        return updateJournalInPass(journal, new AtomicLong(journalVersions.current()));
+    }
+
+    /**
+     * As {@link #updateJournalInPass(Journal)}, keeping the {@link JournalVersions} stamp of the result up to date
+     *
+     * @param journal        - the Journal object generated from Crossref metadata
+     * @param journalVersion the stamp taken before the journal was read, moved on past this update of the journal
+     *                       if nothing else has updated it since
+     * @return the updated Journal object stored in PASS if the PASS object needs updating; null if we don't have
+     * enough info to create a journal
+     * @throws IncompleteJournalLookupException if PASS did not answer in time to tell whether the journal exists
+     */
+    Journal updateJournalInPass(Journal journal, AtomicLong journalVersion) {
         LOG.debug("GETTING ISSNS");
         List<String> issns = journal.getIssns();
         LOG.debug("GETTING NAME");
         String name = journal.getJournalName();
 
-        Journal passJournal;
+        Journal passJournal = null;
 
-        URI passJournalUri = find(name, issns);
+        URI passJournalUri = timedFind(name, issns);
 
         if (passJournalUri == null) {
             // we don't have this journal in pass yet
             if (name != null && !name.isEmpty() && issns.size() > 0) {
-                // we have enough info to make a journal entry
-                passJournal = passClient.createAndReadResource(journal, Journal.class);
+                // we have enough info to make a journal entry, unless a concurrent request for the same journal has
+                // just made it; the locks remember journals made under them, which PASS may not show yet
+                AtomicReference<Journal> created = new AtomicReference<>();
+                URI found = journalLocks.withLocks(name, issns, () -> {
+                    URI uri = journalLocks.findCreated(name, issns);
+                    if (uri == null) {
+                        uri = timedFind(name, issns);
+                    }
+                    if (uri == null) {
+                        long createStart = metrics.start(Stage.CREATE);
+                        try {
+                            created.set(passClient.createAndReadResource(journal, Journal.class));
+                        } finally {
+                            metrics.stop(Stage.CREATE, createStart);
+                        }
+                        journalLocks.created(created.get().getId(), name, issns);
+                        journalIndex.addJournal(created.get().getId(), created.get().getJournalName(),
+                                                created.get().getIssns());
+                    }
+                    return uri;
+                });
+                if (found == null) {
+                    passJournal = created.get();
+                } else {
+                    passJournalUri = found;
+                }
             } else {
                 // do not have enough to create a new journal
                 LOG.debug("Not enough info for journal " + name);
                 return null;
             }
-        } else { //we have a journal, let's see if we can add anything new - just issns atm. we add only if not present
-            passJournal = passClient.readResource(passJournalUri, Journal.class);
+        }
+        //we have a journal, let's see if we can add anything new - just issns atm. we add only if not present
+        if (passJournalUri != null) {
+            long readStart = metrics.start(Stage.READ);
+            try {
+                passJournal = passClient.readResource(passJournalUri, Journal.class);
+            } finally {
+                metrics.stop(Stage.READ, readStart);
+            }
 
             if (passJournal != null) {
                 //check to see if we can supply issns
@@ -367,7 +1407,18 @@ public class PassDoiServlet extends HttpServlet {
                                                              journal.getIssns().stream()).distinct()
                                                      .collect(Collectors.toList());
                     passJournal.setIssns(newIssnList);
-                    passClient.updateResource(passJournal);
+                    if (!queueJournalUpdate(passJournalUri, journal.getIssns())) {
+                        long updateStart = metrics.start(Stage.UPDATE);
+                        try {
+                            passClient.updateResource(passJournal);
+                        } finally {
+                            metrics.stop(Stage.UPDATE, updateStart);
+                        }
+                    }
+                    journalIndex.addJournal(passJournalUri, passJournal.getJournalName(), newIssnList);
+                    //cached results naming this journal were built from what it was before, but not this one
+                    journalVersion.set(journalVersions.updated(externalize(passJournalUri).toString(),
+                                                               journalVersion.get()));
                 }
 
             } else {
@@ -379,6 +1430,63 @@ public class PassDoiServlet extends HttpServlet {
 
         }
         //externalize the internal journal id
+        passJournal.setId(externalize(passJournal.getId()));
+        LOG.debug("passJournal URI: " + passJournal.getId().toString());
+        LOG.debug("Returning journal object: " + passJournal.toString());
+        return passJournal;
+    }
+
+    /**
+     * find a journal in PASS, timing the search
+     *
+     * @param name  the name of the journal
+     * @param issns the typed issns of the journal
+     * @return the URI of the best match, or null if nothing matches
+     */
+    private URI timedFind(String name, List<String> issns) {
+        long findStart = metrics.start(Stage.FIND);
+        try {
+            if (journalFinder != null) {
+                try {
+                    return journalFinder.find(name, issns);
+                } catch (IOException e) {
+                    LOG.warn("Journal search failed; looking the journal up by name and ISSN instead: " +
+                             e.getMessage());
+                }
+            }
+            return find(name, issns);
+        } finally {
+            metrics.stop(Stage.FIND, findStart);
+        }
+    }
+
+    /**
+     * hand new ISSNs of a journal to be written in the background, if journal updates are written that way
+     *
+     * @param journal the internal URI of the journal
+     * @param issns   the typed issns to add to it
+     * @return whether the ISSNs were queued; if not, the caller must write them
+     */
+    private boolean queueJournalUpdate(URI journal, List<String> issns) {
+        if (journalUpdates == null) {
+            return false;
+        }
+        try {
+            journalUpdates.merge(journal, issns);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not queue the update of journal " + journal + "; writing it directly", e);
+            return false;
+        }
+    }
+
+    /**
+     * translate an internal journal id to the external form presented to clients
+     *
+     * @param id the internal id
+     * @return the external id
+     */
+    private URI externalize(URI id) {
         String internalPrefix = System.getenv("PASS_FEDORA_BASEURL") != null ? System.getenv(
             "PASS_FEDORA_BASEURL") : FEDORA_INTERNAL;
         String externalPrefix = System.getenv("PASS_EXTERNAL_FEDORA_BASEURL") != null ? System.getenv(
@@ -387,13 +1495,11 @@ public class PassDoiServlet extends HttpServlet {
         externalPrefix = externalPrefix + (externalPrefix.endsWith("/") ? "" : "/");
         LOG.debug("Internal prefix: " + internalPrefix);
         LOG.debug("External prefix: " + externalPrefix);
-        String internalUriString = passJournal.getId().toString();
+        String internalUriString = id.toString();
         if (internalUriString.startsWith(internalPrefix)) {
-            passJournal.setId(URI.create(internalUriString.replace(internalPrefix, externalPrefix)));
+            return URI.create(internalUriString.replace(internalPrefix, externalPrefix));
         }
-        LOG.debug("passJournal URI: " + passJournal.getId().toString());
-        LOG.debug("Returning journal object: " + passJournal.toString());
-        return passJournal;
+        return id;
     }
 
     /**
@@ -403,104 +1509,125 @@ public class PassDoiServlet extends HttpServlet {
      * @param name  the name of the journal to be found
      * @param issns the set of issns to find. we assume that the issns stored in the repo are of the format type:value
      * @return the URI of the best match, or null in nothing matches
+     * @throws IncompleteJournalLookupException if nothing matches, but some lookups were abandoned
      */
     URI find(String name, List<String> issns) {
 
-        Set<URI> nameUriSet = passClient.findAllByAttribute(Journal.class, "name", name);
-        Map<URI, Integer> uriScores = new HashMap<>();
-
-        if (!issns.isEmpty()) {
-            for (String issn : issns) {
-                Set<URI> issnList = passClient.findAllByAttribute(Journal.class, "issns", issn);
-                if (issnList != null) {
-                    for (URI uri : issnList) {
-                        Integer i = uriScores.putIfAbsent(uri, 1);
-                        if (i != null) {
-                            uriScores.put(uri, i + 1);
-                        }
-                    }
-                }
+        // the name and issn lookups are independent of each other, so issue them all at once
+        List<Future<Set<URI>>> lookups = new ArrayList<>();
+        lookups.add(lookup(journalIndex.cachedByName(name), () -> journalIndex.findByName(name)));
+        for (String issn : issns) {
+            if (Issn.parse(issn) == Issn.INVALID) {
+                //an invalid issn names no journal, so is not worth asking PASS about
+                lookups.add(CompletableFuture.completedFuture(Collections.emptySet()));
+            } else {
+                lookups.add(lookup(journalIndex.cachedByIssn(issn), () -> journalIndex.findByIssn(issn)));
             }
         }
 
-        if (nameUriSet != null) {
-            for (URI uri : nameUriSet) {
-                Integer i = uriScores.putIfAbsent(uri, 1);
-                if (i != null) {
-                    uriScores.put(uri, i + 1);
-                }
-            }
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(lookupTimeout);
+        List<Set<URI>> results = new ArrayList<>(lookups.size());
+        for (Future<Set<URI>> lookup : lookups) {
+            results.add(lookup == null ? null : await(lookup, deadline));
         }
+        URI match = JournalFinder.bestMatch(results);
+        //a match is good enough without every lookup, but finding nothing is not to be trusted
+        if (match == null && results.contains(null)) {
+            throw new IncompleteJournalLookupException(
+                "No journal matched, but " + Collections.frequency(results, null) + " of " + results.size() +
+                " lookups for it were abandoned");
+        }
+        return match;
+    }
 
-        if (uriScores.size() > 0) {
-            // we have matches, pick the best one
-            Integer highScore = Collections.max(uriScores.values());
-
-            int minimumQualifyingScore = 1;
-            // with so little to go on, we may realistically get just one hit
-
-            List<URI> sortedUris = new ArrayList<>();
-
-            for (int i = highScore; i >= minimumQualifyingScore; i--) {
-                for (URI uri : uriScores.keySet()) {
-                    if (uriScores.get(uri) == i) {
-                        sortedUris.add(uri);
-                    }
-                }
-            }
+    /**
+     * start a journal lookup on the lookup executor, unless its result is already at hand
+     *
+     * @param cached the result from the journal index, or null if the index does not have it
+     * @param lookup the lookup against PASS
+     * @return the pending result of the lookup, or null if there is no room for it on the executor
+     */
+    private Future<Set<URI>> lookup(Set<URI> cached, Callable<Set<URI>> lookup) {
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        try {
+            return lookupExecutor.submit(lookup);
+        } catch (RejectedExecutionException e) {
+            abandonedLookups.incrementAndGet();
+            LOG.warn("Too many journal lookups are waiting to run; scoring without one");
+            return null;
+        }
+    }
 
-            if (sortedUris.size() > 0) {
-                // there are matching journals
-                // return the best match
-                return sortedUris.get(0);
+    /**
+     * wait for the result of a journal lookup. A lookup which does not finish in time is abandoned, and the
+     * journal is scored without it.
+     *
+     * @param lookup   the pending lookup
+     * @param deadline the time by which the lookup must finish, in terms of {@link System#nanoTime()}
+     * @return the URIs found by the lookup, or null if it did not finish in time
+     */
+    private Set<URI> await(Future<Set<URI>> lookup, long deadline) {
+        try {
+            return lookup.get(deadline - System.nanoTime(), NANOSECONDS);
+        } catch (TimeoutException e) {
+            lookup.cancel(true);
+            abandonedLookups.incrementAndGet();
+            LOG.warn("Journal lookup did not complete within " + lookupTimeout + " ms; scoring without it");
+            return null;
+        } catch (InterruptedException e) {
+            lookup.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
         }
-
-        // nothing matches, create a new journal
-        return null;
     }
 
     /**
      * check to see whether supplied DOI is in Crossref format after splitting off a possible prefix
      *
-     * @return the valid suffix, or null if invalid
+     * @return the valid suffix in canonical form, or null if invalid
+     * @see DoiNormalizer
      */
     String verify(String doi) {
-        if (doi == null) {
-            return null;
-        }
-        String criterion = "doi.org/";
-        int i = doi.indexOf(criterion);
-        String suffix = i >= 0 ? doi.substring(i + criterion.length()) : doi;
-
-        Pattern pattern = Pattern.compile("^10\\.\\d{4,9}/[-._;()/:a-zA-Z0-9]+$");
-
-        Matcher matcher = pattern.matcher(suffix);
-        return matcher.matches() ? suffix : null;
+        return DoiNormalizer.normalize(doi);
     }
 
     /**
-     * A class to manage locking so that an active process for a DOI will finish executing before
-     * another one begins
+     * @param name the name prefix for the threads
+     * @return a factory for named daemon threads, which will not hold up shutdown of the container
      */
-    public class ExpiringLock implements Runnable {
-        private String key;
-        private int duration;
-
-        ExpiringLock(String key, int duration) {
-            this.key = key;
-            this.duration = duration;
-        }
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 
-        public void run() {
+    /**
+     * read a numeric setting from the environment, using the default if it is absent or malformed
+     *
+     * @param name         the name of the environment variable
+     * @param defaultValue the value to use if the variable is not usable
+     * @return the value of the setting
+     */
+    private static long getLongSetting(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value != null) {
             try {
-                sleep(duration);
-                activeJobs.remove(key);
-            } catch (InterruptedException e) {
-                activeJobs.remove(key);
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring malformed value " + value + " for " + name + "; using " + defaultValue);
             }
         }
-
+        return defaultValue;
     }
 
     /**
@@ -0,0 +1,260 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The measurements of the service, written out in the Prometheus text format by the {@link MetricsServlet}.
+ * <p>
+ * The time spent in each stage of resolving a doi is kept in a {@link LatencyHistogram}, along with the number of
+ * requests in each stage at the moment. Responses are counted by status. Other components, such as the caches and
+ * the Crossref rate limiter, register their own counters and gauges, which are read when the metrics are written.
+ */
+class ServiceMetrics {
+
+    /**
+     * the servlet context attribute under which the service publishes its metrics
+     */
+    static final String CONTEXT_ATTRIBUTE = ServiceMetrics.class.getName();
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "pass_doi_";
+
+    /**
+     * the stages of resolving a doi
+     */
+    enum Stage {
+        //checking and normalizing the doi
+        VERIFY,
+        //getting the record from Crossref, not counting records found in the cache or the store
+        CROSSREF,
+        //building a PASS journal from the record
+        BUILD,
+        //finding the journal in PASS
+        FIND,
+        //reading the journal found from PASS
+        READ,
+        //creating a journal in PASS
+        CREATE,
+        //adding ISSNs to a journal in PASS
+        UPDATE,
+        //writing the response
+        WRITE;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> inFlight = new EnumMap<>(Stage.class);
+    private final LongAdder requestsInFlight = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    ServiceMetrics() {
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram(LatencyHistogram.DEFAULT_BUCKETS));
+            inFlight.put(stage, new LongAdder());
+        }
+    }
+
+    /**
+     * note the start of a stage
+     *
+     * @param stage the stage
+     * @return the start time, to be passed to {@link #stop(Stage, long)}
+     */
+    long start(Stage stage) {
+        inFlight.get(stage).increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * note the end of a stage, and record how long it took
+     *
+     * @param stage the stage
+     * @param start the start time returned by {@link #start(Stage)}
+     */
+    void stop(Stage stage, long start) {
+        latencies.get(stage).record(System.nanoTime() - start);
+        inFlight.get(stage).decrement();
+    }
+
+    void requestStarted() {
+        requestsInFlight.increment();
+    }
+
+    void requestFinished() {
+        requestsInFlight.decrement();
+    }
+
+    /**
+     * @param status the status of a response sent to a client
+     */
+    void response(int status) {
+        LongAdder count = responses.get(status);
+        if (count == null) {
+            count = responses.computeIfAbsent(status, s -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * @param stage a stage
+     * @return the histogram of the time spent in the stage
+     */
+    LatencyHistogram getLatency(Stage stage) {
+        return latencies.get(stage);
+    }
+
+    /**
+     * @param status a status
+     * @return the number of responses sent with the status
+     */
+    long getResponses(int status) {
+        LongAdder count = responses.get(status);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * register a counter, read whenever the metrics are written
+     *
+     * @param name   the name, without the service prefix or the _total suffix
+     * @param help   what the counter counts
+     * @param labels labels, as {@code name="value"} pairs separated by commas, or an empty string
+     * @param value  reads the counter
+     */
+    void counter(String name, String help, String labels, DoubleSupplier value) {
+        register(PREFIX + name + "_total", "counter", help, labels, value);
+    }
+
+    /**
+     * register a gauge, read whenever the metrics are written
+     *
+     * @param name   the name, without the service prefix
+     * @param help   what the gauge measures
+     * @param labels labels, as {@code name="value"} pairs separated by commas, or an empty string
+     * @param value  reads the gauge
+     */
+    void gauge(String name, String help, String labels, DoubleSupplier value) {
+        register(PREFIX + name, "gauge", help, labels, value);
+    }
+
+    /**
+     * @return the metrics, in the Prometheus text format
+     */
+    String write() {
+        StringBuilder out = new StringBuilder(8192);
+
+        String name = PREFIX + "stage_duration_seconds";
+        header(out, name, "histogram", "Time spent in each stage of resolving a DOI");
+        for (Stage stage : Stage.values()) {
+            latencies.get(stage).write(out, name, "stage=\"" + stage.label() + "\"");
+        }
+
+        name = PREFIX + "stage_in_flight";
+        header(out, name, "gauge", "Requests currently in each stage of resolving a DOI");
+        for (Stage stage : Stage.values()) {
+            sample(out, name, "stage=\"" + stage.label() + "\"", inFlight.get(stage).sum());
+        }
+
+        name = PREFIX + "requests_in_flight";
+        header(out, name, "gauge", "DOI requests currently being served");
+        sample(out, name, "", requestsInFlight.sum());
+
+        name = PREFIX + "responses_total";
+        header(out, name, "counter", "DOI responses sent, by status");
+        for (Map.Entry<Integer, LongAdder> count : new TreeMap<>(responses).entrySet()) {
+            sample(out, name, "status=\"" + count.getKey() + "\"", count.getValue().sum());
+        }
+
+        synchronized (families) {
+            for (Map.Entry<String, Family> family : families.entrySet()) {
+                Family f = family.getValue();
+                header(out, family.getKey(), f.type, f.help);
+                for (Sample s : f.samples) {
+                    sample(out, family.getKey(), s.labels, s.value.getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private void register(String name, String type, String help, String labels, DoubleSupplier value) {
+        synchronized (families) {
+            Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+            }
+            family.samples.add(new Sample(labels, value));
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final List<Sample> samples = new ArrayList<>();
+
+        private Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static class Sample {
+        private final String labels;
+        private final DoubleSupplier value;
+
+        private Sample(String labels, DoubleSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
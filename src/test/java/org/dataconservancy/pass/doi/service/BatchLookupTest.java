@@ -0,0 +1,180 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the batch endpoint. The resolution of a doi is stubbed out, so that these tests only exercise the
+ * reading of batches and the streaming of results.
+ */
+public class BatchLookupTest {
+
+    private PassDoiServlet underTest;
+
+    private AtomicInteger resolving = new AtomicInteger();
+    private AtomicInteger maxResolving = new AtomicInteger();
+
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private HttpServletResponse response;
+
+    @Before
+    public void setUp() throws Exception {
+        underTest = new PassDoiServlet() {
+            @Override
+            DoiResponse resolve(String doi) {
+                maxResolving.accumulateAndGet(resolving.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                resolving.decrementAndGet();
+                if (doi.endsWith("missing")) {
+                    return DoiResponse.error(404, "The resource for DOI " + doi + " could not be found on Crossref.");
+                }
+                return new DoiResponse(200, Json.createObjectBuilder().add("journal-id", "journal:" + doi).build());
+            }
+        };
+        underTest.init(null);
+
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        underTest.destroy();
+    }
+
+    /**
+     * a JSON array of dois gets one line back per doi, each with the same shape as a single lookup
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void jsonBatchTest() throws Exception {
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            batch.append("\"10.1234/").append(i).append("\",");
+        }
+        batch.append("\"10.1234/missing\", \"moo\"]");
+
+        underTest.doPost(request(batch.toString(), "application/json"), response);
+
+        verify(response).setStatus(200);
+        Map<String, JsonObject> results = results();
+        assertEquals(102, results.size());
+        for (int i = 0; i < 100; i++) {
+            JsonObject result = results.get("10.1234/" + i);
+            assertEquals(200, result.getInt("status"));
+            assertEquals("journal:10.1234/" + i, result.getString("journal-id"));
+        }
+        assertEquals(404, results.get("10.1234/missing").getInt("status"));
+        assertEquals(400, results.get("moo").getInt("status"));
+        assertEquals("Supplied DOI is not in valid Crossref format.", results.get("moo").getString("error"));
+
+        assertTrue(maxResolving.get() > 1);
+        assertTrue(maxResolving.get() <= 4);
+    }
+
+    /**
+     * plain text batches have one doi per line
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void textBatchTest() throws Exception {
+        underTest.doPost(request("10.1234/a\n\n  10.1234/b  \n10.1234/c\n", "text/plain"), response);
+
+        Map<String, JsonObject> results = results();
+        assertEquals(3, results.size());
+        assertEquals("journal:10.1234/b", results.get("10.1234/b").getString("journal-id"));
+    }
+
+    /**
+     * a batch which is not a JSON array is rejected outright
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void malformedBatchTest() throws Exception {
+        underTest.doPost(request("{\"doi\": \"10.1234/a\"}", "application/json"), response);
+
+        verify(response).setStatus(400);
+        try (JsonReader reader = Json.createReader(new StringReader(body.toString("UTF-8")))) {
+            assertEquals("Expected a JSON array of DOIs", reader.readObject().getString("error"));
+        }
+    }
+
+    private HttpServletRequest request(String batch, String contentType) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getServletPath()).thenReturn(PassDoiServlet.BATCH_PATH);
+        when(request.getContentType()).thenReturn(contentType);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(batch)));
+        return request;
+    }
+
+    private Map<String, JsonObject> results() {
+        Map<String, JsonObject> results = new HashMap<>();
+        for (String line : new String(body.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                JsonObject result = reader.readObject();
+                results.put(result.getString("doi"), result);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.dataconservancy.pass.doi.service.CrossrefCircuitBreaker.State;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the Crossref circuit breaker, against a local server standing in for a failing Crossref
+ */
+public class CrossrefCircuitBreakerTest {
+
+    private MockWebServer crossref;
+    private ScheduledExecutorService probes;
+    private OkHttpClient plainClient;
+
+    @Before
+    public void setUp() throws Exception {
+        crossref = new MockWebServer();
+        crossref.start();
+        probes = Executors.newSingleThreadScheduledExecutor();
+        plainClient = new OkHttpClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        probes.shutdownNow();
+        crossref.shutdown();
+    }
+
+    /**
+     * once enough requests fail, the circuit opens and requests fail without being sent
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void opensOnFailuresTest() throws Exception {
+        crossref.enqueue(new MockResponse());
+        for (int i = 0; i < 3; i++) {
+            crossref.enqueue(new MockResponse().setResponseCode(500));
+        }
+        CrossrefCircuitBreaker breaker = breaker(50, 60000);
+        OkHttpClient client = client(breaker);
+
+        assertEquals(200, get(client));
+        assertEquals(500, get(client));
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(500, get(client));
+        assertEquals(500, get(client));
+        assertEquals(State.OPEN, breaker.getState());
+
+        try {
+            get(client);
+            throw new AssertionError("Expected the request to fail fast");
+        } catch (CrossrefCircuitBreaker.CircuitOpenException e) {
+            //expected
+        }
+        assertEquals(4, crossref.getRequestCount());
+        assertEquals(1, breaker.getRejectedRequests());
+        assertEquals(1, breaker.getTransitions(State.OPEN));
+    }
+
+    /**
+     * requests which succeed, but slowly, count as failures
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void slowRequestsCountAsFailuresTest() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            crossref.enqueue(new MockResponse().setHeadersDelay(100, TimeUnit.MILLISECONDS));
+        }
+        CrossrefCircuitBreaker breaker = breaker(50, 60000);
+        OkHttpClient client = client(breaker);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(200, get(client));
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    /**
+     * after the open period a probe is sent in the background; the circuit opens again if it fails, and closes
+     * once one succeeds
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void halfOpenProbeTest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            crossref.enqueue(new MockResponse().setResponseCode(503));
+        }
+        crossref.enqueue(new MockResponse());
+        crossref.enqueue(new MockResponse());
+        CrossrefCircuitBreaker breaker = breaker(10000, 100);
+        OkHttpClient client = client(breaker);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(503, get(client));
+        }
+        assertEquals(State.OPEN, breaker.getState());
+
+        //the first probe fails, the second succeeds
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (breaker.getState() != State.CLOSED && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(6, crossref.getRequestCount());
+        assertEquals(2, breaker.getTransitions(State.OPEN));
+        assertEquals(2, breaker.getTransitions(State.HALF_OPEN));
+        assertEquals(1, breaker.getTransitions(State.CLOSED));
+
+        assertEquals(200, get(client));
+    }
+
+    private CrossrefCircuitBreaker breaker(long slowCall, long openPeriod) {
+        return new CrossrefCircuitBreaker(4, 4, 0.5, slowCall, openPeriod, probes, request -> {
+            try (Response response = plainClient.newCall(request).execute()) {
+                return response.code() < 500;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private static OkHttpClient client(CrossrefCircuitBreaker breaker) {
+        return new OkHttpClient.Builder().addInterceptor(breaker).build();
+    }
+
+    private int get(OkHttpClient client) throws IOException {
+        Request request = new Request.Builder().url(crossref.url("/v1/works/10.1234/x")).build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the Crossref rate limiter, against a local server which sends Crossref's rate limit headers
+ */
+public class CrossrefRateLimiterTest {
+
+    private MockWebServer crossref;
+
+    @Before
+    public void setUp() throws Exception {
+        crossref = new MockWebServer();
+        crossref.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        crossref.shutdown();
+    }
+
+    /**
+     * the rate limit advertised by Crossref replaces the default, and requests beyond it wait for their turn
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void advertisedLimitIsEnforcedTest() throws Exception {
+        for (int i = 0; i < 11; i++) {
+            crossref.enqueue(limited(new MockResponse(), 5, "1s"));
+        }
+        CrossrefRateLimiter limiter = new CrossrefRateLimiter(100, 1000, 8, 5000);
+        OkHttpClient client = client(limiter);
+
+        get(client);
+        assertEquals(5, limiter.getLimit());
+        assertEquals(1000, limiter.getInterval());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(200, get(client));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        //five requests go straight away, and the other five wait for a token each
+        assertTrue("Took " + elapsed + " ms", elapsed >= 800);
+        assertEquals(0, limiter.getRejectedRequests());
+    }
+
+    /**
+     * a request which cannot be sent within the maximum wait is answered locally with a 429
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void requestsGiveUpAfterMaxWaitTest() throws Exception {
+        crossref.enqueue(new MockResponse());
+        CrossrefRateLimiter limiter = new CrossrefRateLimiter(1, 10000, 8, 100);
+        OkHttpClient client = client(limiter);
+
+        assertEquals(200, get(client));
+        long start = System.nanoTime();
+        assertEquals(429, get(client));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        assertEquals(1, crossref.getRequestCount());
+        assertEquals(1, limiter.getRejectedRequests());
+    }
+
+    /**
+     * deferrable work is only let through while more than the reserve of the rate limit is unused
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void headroomTest() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            crossref.enqueue(new MockResponse());
+        }
+        CrossrefRateLimiter limiter = new CrossrefRateLimiter(4, 10000, 8, 100);
+        OkHttpClient client = client(limiter);
+
+        assertTrue(limiter.hasHeadroom(50));
+        assertEquals(200, get(client));
+        assertTrue(limiter.hasHeadroom(50));
+        assertEquals(200, get(client));
+        //two tokens left, which is the reserve
+        assertFalse(limiter.hasHeadroom(50));
+        assertTrue(limiter.hasHeadroom(0));
+        assertFalse(limiter.hasHeadroom(100));
+    }
+
+    /**
+     * a 429 from Crossref halves the requests allowed in flight, which grow back as requests succeed
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrencyAdaptsToThrottlingTest() throws Exception {
+        crossref.enqueue(new MockResponse().setResponseCode(429));
+        crossref.enqueue(new MockResponse().setResponseCode(429));
+        for (int i = 0; i < 40; i++) {
+            crossref.enqueue(new MockResponse());
+        }
+        CrossrefRateLimiter limiter = new CrossrefRateLimiter(1000, 1000, 8, 5000);
+        OkHttpClient client = client(limiter);
+
+        assertEquals(429, get(client));
+        assertEquals(4, limiter.getConcurrency());
+        assertEquals(429, get(client));
+        assertEquals(2, limiter.getConcurrency());
+        assertEquals(2, limiter.getThrottledResponses());
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals(200, get(client));
+        }
+        assertEquals(8, limiter.getConcurrency());
+    }
+
+    /**
+     * no more requests than the limit are in flight at once
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void inFlightRequestsAreLimitedTest() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        crossref.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                inFlight.decrementAndGet();
+                return new MockResponse();
+            }
+        });
+        CrossrefRateLimiter limiter = new CrossrefRateLimiter(1000, 1000, 2, 5000);
+        OkHttpClient client = client(limiter);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> get(client)));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(200, (int) result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(maxInFlight.get() <= 2);
+    }
+
+    private OkHttpClient client(CrossrefRateLimiter limiter) {
+        return new OkHttpClient.Builder().addInterceptor(limiter).build();
+    }
+
+    private int get(OkHttpClient client) throws Exception {
+        Request request = new Request.Builder().url(crossref.url("/v1/works/10.1234/x")).build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+
+    private static MockResponse limited(MockResponse response, int limit, String interval) {
+        return response.addHeader(CrossrefRateLimiter.LIMIT_HEADER, limit)
+                       .addHeader(CrossrefRateLimiter.INTERVAL_HEADER, interval);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the on-disk Crossref record store
+ */
+public class CrossrefRecordStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * records survive the store being closed and opened again
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void reopenTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024)) {
+            for (int i = 0; i < 10; i++) {
+                store.put("10.1234/" + i, record(i, 200), 1000 + i);
+            }
+            store.put("10.1234/3", record(33, 200), 2000);
+            assertArrayEquals(record(33, 200), store.get("10.1234/3").getValue());
+        }
+
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024)) {
+            assertEquals(10, store.count());
+            assertArrayEquals(record(7, 200), store.get("10.1234/7").getValue());
+            assertEquals(1007, store.get("10.1234/7").getWritten());
+            assertArrayEquals(record(33, 200), store.get("10.1234/3").getValue());
+            assertNull(store.get("10.1234/missing"));
+        }
+    }
+
+    /**
+     * a segment cut short, or damaged, part way through an entry is truncated at that entry when the store is
+     * opened, keeping the entries before it, and the store can be written to again
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void truncatedSegmentRecoveryTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        int entry = CrossrefRecordStore.HEADER_SIZE + "10.1234/0".length() + 100;
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024 * 1024)) {
+            for (int i = 0; i < 5; i++) {
+                store.put("10.1234/" + i, record(i, 100), 1000 + i);
+            }
+        }
+
+        //cut the last entry short, as a crash part way through writing it would
+        File segment = onlySegment(dir);
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(5 * entry - 10);
+        }
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024 * 1024)) {
+            assertEquals(4, store.count());
+            assertEquals(4 * entry, segment.length());
+            assertNull(store.get("10.1234/4"));
+            assertArrayEquals(record(3, 100), store.get("10.1234/3").getValue());
+            store.put("10.1234/4", record(44, 100), 3000);
+        }
+
+        //damage a byte in the value of the third entry, which fails its checksum
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'!'}), 2 * entry + entry - 5);
+        }
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024 * 1024)) {
+            assertEquals(2, store.count());
+            assertEquals(2 * entry, segment.length());
+            assertArrayEquals(record(1, 100), store.get("10.1234/1").getValue());
+            assertNull(store.get("10.1234/2"));
+        }
+    }
+
+    /**
+     * rewriting the same records leaves garbage, which compaction clears away
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void compactionTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 4096, Runnable::run)) {
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 5; i++) {
+                    store.put("10.1234/" + i, record(round * 10 + i, 200), round);
+                }
+            }
+            assertTrue(store.getCompactions() > 0);
+            assertEquals(5, store.count());
+            assertTrue(store.size() < 2 * 4096);
+            assertArrayEquals(record(490 + 2, 200), store.get("10.1234/2").getValue());
+        }
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 4096)) {
+            assertEquals(5, store.count());
+            assertArrayEquals(record(490 + 4, 200), store.get("10.1234/4").getValue());
+        }
+    }
+
+    /**
+     * compaction in the background keeps the newest record for every doi, while records carry on being written
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void backgroundCompactionTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        ExecutorService compactor = Executors.newSingleThreadExecutor();
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 4096, compactor)) {
+            for (int round = 0; round < 200; round++) {
+                for (int i = 0; i < 5; i++) {
+                    store.put("10.1234/" + i, record(round * 10 + i, 200), round);
+                }
+            }
+            compactor.shutdown();
+            assertTrue(compactor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(store.getCompactions() > 0);
+            assertEquals(5, store.count());
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(record(1990 + i, 200), store.get("10.1234/" + i).getValue());
+            }
+        }
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 4096)) {
+            assertEquals(5, store.count());
+            assertArrayEquals(record(1990 + 3, 200), store.get("10.1234/3").getValue());
+        }
+    }
+
+    /**
+     * a compaction which cannot copy every record leaves the index and the segments it had
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void failedCompactionTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024, Runnable::run)) {
+            for (int i = 0; i < 20; i++) {
+                store.put("10.1234/" + i, record(i, 200), 1000 + i);
+            }
+            File[] before = dir.toFile().listFiles();
+
+            //lose the oldest segment from under the store, so that its records cannot be copied
+            File oldest = dir.resolve(String.format("%010d", 0) + ".seg").toFile();
+            try (FileChannel channel = FileChannel.open(oldest.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+            try {
+                store.compact();
+                fail("Expected the compaction to fail");
+            } catch (IOException e) {
+                //expected
+            }
+
+            assertEquals(0, store.getCompactions());
+            assertEquals(20, store.count());
+            assertArrayEquals(record(19, 200), store.get("10.1234/19").getValue());
+            for (File file : before) {
+                assertTrue(file.exists());
+            }
+            assertEquals(before.length + 1, dir.toFile().listFiles().length);
+        }
+    }
+
+    /**
+     * after a compaction fails, further writes do not start another until the backoff interval has passed
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void failedCompactionBackoffTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        AtomicInteger compactions = new AtomicInteger();
+        Executor compactor = r -> {
+            compactions.incrementAndGet();
+            r.run();
+        };
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, 1024 * 1024, 1024, compactor)) {
+            for (int i = 0; i < 10; i++) {
+                store.put("10.1234/" + i, record(i, 200), 1000 + i);
+            }
+            //lose the oldest segment from under the store, so that every compaction fails
+            File oldest = dir.resolve(String.format("%010d", 0) + ".seg").toFile();
+            try (FileChannel channel = FileChannel.open(oldest.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+
+            //rewriting a record makes garbage until a compaction is due
+            for (int i = 0; i < 50; i++) {
+                store.put("10.1234/9", record(i, 200), 2000 + i);
+            }
+            assertEquals(1, compactions.get());
+            assertEquals(0, store.getCompactions());
+
+            store.compactionBackoff = 0;
+            store.put("10.1234/9", record(99, 200), 3000);
+            assertEquals(2, compactions.get());
+            assertArrayEquals(record(99, 200), store.get("10.1234/9").getValue());
+        }
+    }
+
+    /**
+     * the store is kept under its size cap by dropping the oldest records
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void sizeCapTest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        long cap = 20 * 1024;
+        try (CrossrefRecordStore store = new CrossrefRecordStore(dir, cap, 4096, Runnable::run)) {
+            for (int i = 0; i < 200; i++) {
+                store.put("10.1234/" + i, record(i, 500), i);
+                assertTrue(store.size() <= cap);
+            }
+            assertTrue(store.count() < 200);
+            assertArrayEquals(record(199, 500), store.get("10.1234/199").getValue());
+            assertNull(store.get("10.1234/0"));
+        }
+        long onDisk = 0;
+        for (File file : folder.getRoot().listFiles()) {
+            onDisk += file.length();
+        }
+        assertTrue(onDisk <= cap);
+    }
+
+    private static File onlySegment(Path dir) {
+        File[] segments = dir.toFile().listFiles((d, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private static byte[] record(int n, int size) {
+        byte[] record = new byte[size];
+        Arrays.fill(record, (byte) ' ');
+        byte[] json = ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(json, 0, record, 0, json.length);
+        return record;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonParsingException;
+
+import org.dataconservancy.pass.model.Journal;
+import org.junit.Test;
+
+/**
+ * Tests for the streaming extraction of journal fields from Crossref works records, including a measure of the
+ * memory it saves on a large record
+ */
+public class CrossrefRecordTest {
+
+    /**
+     * the journal fields are pulled out of the record, and the record itself is kept as it was
+     */
+    @Test
+    public void extractionTest() {
+        byte[] raw = DoiResponseTest.largeRecord(100).getBytes(StandardCharsets.UTF_8);
+        CrossrefRecord record = CrossrefRecord.parse(raw);
+
+        assertFalse(record.isError());
+        assertNull(record.getError());
+        assertEquals(raw.length, record.size());
+        assertEquals("Clinical Medicine Insights: Cardiology", record.getContainerTitle());
+        assertEquals(Arrays.asList("1179-5468", "1179-5468"), record.getIssns());
+        assertEquals(2, record.getTypedIssns().size());
+        assertEquals("print", record.getTypedIssns().get(0).getType());
+        assertEquals("1179-5468", record.getTypedIssns().get(0).getValue());
+        assertEquals("electronic", record.getTypedIssns().get(1).getType());
+
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(raw))) {
+            assertEquals(reader.readObject(), record.getJson());
+        }
+    }
+
+    /**
+     * a journal built from the streamed fields is the same as one built from the parsed record
+     */
+    @Test
+    public void buildPassJournalTest() {
+        PassDoiServlet servlet = new PassDoiServlet();
+        CrossrefRecord record = CrossrefRecord.parse(DoiResponseTest.largeRecord(10)
+                                                                    .getBytes(StandardCharsets.UTF_8));
+
+        Journal streamed = servlet.buildPassJournal(record);
+        Journal built = servlet.buildPassJournal(record.getJson());
+        assertEquals("Clinical Medicine Insights: Cardiology", streamed.getJournalName());
+        assertEquals(Arrays.asList("Print:1179-5468", "Online:1179-5468"), streamed.getIssns());
+        assertEquals(built.getJournalName(), streamed.getJournalName());
+        assertEquals(built.getIssns(), streamed.getIssns());
+    }
+
+    /**
+     * an error member in place of a message is reported as the error of the record
+     */
+    @Test
+    public void errorMemberTest() {
+        CrossrefRecord record = CrossrefRecord.parse("{\"error\":\"Resource not found.\"}"
+                                                         .getBytes(StandardCharsets.UTF_8));
+        assertEquals("Resource not found.", record.getError());
+        assertNull(record.getContainerTitle());
+
+        record = CrossrefRecord.error("Resource not found.");
+        assertTrue(record.isError());
+        assertEquals("Resource not found.", record.getJson().getString("error"));
+    }
+
+    /**
+     * bodies which are not JSON objects, or which are cut short, are rejected
+     */
+    @Test
+    public void invalidJsonTest() {
+        for (String body : new String[] {"Resource not found.", "[]", "{\"message\":{\"ISSN\":[\"1179-5468\""}) {
+            try {
+                CrossrefRecord.parse(body.getBytes(StandardCharsets.UTF_8));
+                throw new AssertionError("Expected " + body + " to be rejected");
+            } catch (JsonParsingException e) {
+                //expected
+            }
+        }
+    }
+
+    /**
+     * extracting the journal fields of a large record by streaming allocates a fraction of the memory used to parse
+     * the record into a tree and read them from that
+     */
+    @Test
+    public void allocationTest() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        PassDoiServlet servlet = new PassDoiServlet();
+        byte[] raw = DoiResponseTest.largeRecord(2000).getBytes(StandardCharsets.UTF_8);
+
+        Runnable tree = () -> {
+            try (JsonReader reader = Json.createReader(new ByteArrayInputStream(raw))) {
+                JsonObject metadata = reader.readObject();
+                metadata.getJsonObject("message").getJsonArray("container-title").getString(0);
+                metadata.getJsonObject("message").getJsonArray("issn-type").getJsonObject(0).getString("value");
+            }
+        };
+        Runnable streamed = () -> servlet.buildPassJournal(CrossrefRecord.parse(raw));
+
+        long treeBytes = DoiResponseTest.allocatedPerRun(threads, tree);
+        long streamedBytes = DoiResponseTest.allocatedPerRun(threads, streamed);
+        assertTrue("Bytes allocated per " + raw.length + " byte record: tree " + treeBytes + ", streamed " +
+                   streamedBytes, streamedBytes * 2 < treeBytes);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests for the validation and canonical form of dois
+ */
+public class DoiNormalizerTest {
+
+    //the validation done before there was a normalizer
+    private static final Pattern REGEX = Pattern.compile("^10\\.\\d{4,9}/[-._;()/:a-zA-Z0-9]+$");
+
+    private static final String[] DOIS = {
+        "10.4137/cmc.s38446",
+        "10.4137/CMC.S38446",
+        "http://dx.doi.org/10.4137/cmc.s38446",
+        "https://doi.org/10.1002/(SICI)1097-4636(199706)35:4<449::AID-JBM5>3.0.CO;2-O",
+        "https://doi.org/10.1002/(SICI)1097-4636(199706)35:4-449::AID-JBM5-3.0.CO;2-O",
+        "10.1234/a",
+        "10.123456789/a",
+        "10.1234567890/a",
+        "10.123/a",
+        "10.1234/",
+        "10.1234",
+        "10.1234a/b",
+        "11.1234/a",
+        "10,1234/a",
+        "4137/cmc.s38446",
+        "10.1234/a b",
+        "10.1234/a#b",
+        "10.1234/a_b-c.d;e(f)g/h:i",
+        "doi.org/",
+        "",
+    };
+
+    /**
+     * every doi the regular expression accepted is accepted, as the same doi up to case, and nothing it rejected is
+     * accepted
+     */
+    @Test
+    public void compatibleWithRegexTest() {
+        for (String doi : DOIS) {
+            assertEquals(doi, regex(doi) == null ? null : regex(doi).toLowerCase(Locale.ROOT),
+                         DoiNormalizer.normalize(doi));
+        }
+        assertNull(DoiNormalizer.normalize(null));
+    }
+
+    /**
+     * equivalent dois have the same canonical form
+     */
+    @Test
+    public void canonicalFormTest() {
+        String canonical = "10.4137/cmc.s38446";
+        assertEquals(canonical, DoiNormalizer.normalize("10.4137/CMC.S38446"));
+        assertEquals(canonical, DoiNormalizer.normalize("doi:10.4137/cmc.s38446"));
+        assertEquals(canonical, DoiNormalizer.normalize("DOI:10.4137/cmc.s38446"));
+        assertEquals(canonical, DoiNormalizer.normalize("https://DOI.ORG/doi:10.4137/cmc.s38446"));
+        assertEquals(canonical, DoiNormalizer.normalize("10.4137%2Fcmc.s38446"));
+        assertEquals(canonical, DoiNormalizer.normalize("https://doi.org/10.4137%2fCMC%2Es38446"));
+        assertEquals("10.1002/(sici)1097", DoiNormalizer.normalize("10.1002/%28SICI%291097"));
+    }
+
+    /**
+     * percent escapes must be complete, and decode to a character allowed in a doi
+     */
+    @Test
+    public void badEscapesTest() {
+        assertNull(DoiNormalizer.normalize("10.1234/a%2"));
+        assertNull(DoiNormalizer.normalize("10.1234/a%"));
+        assertNull(DoiNormalizer.normalize("10.1234/a%zz"));
+        assertNull(DoiNormalizer.normalize("10.1234/a%20b"));
+        assertNull(DoiNormalizer.normalize("10.1234/a%C3%A9"));
+        assertNull(DoiNormalizer.normalize("10%2E1234%2F"));
+    }
+
+    /**
+     * a doi which is already canonical is returned as it was given, without allocating anything
+     */
+    @Test
+    public void canonicalDoiAllocatesNothingTest() {
+        String doi = "10.4137/cmc.s38446";
+        assertSame(doi, DoiNormalizer.normalize(doi));
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        long normalizerBytes = DoiResponseTest.allocatedPerRun(threads, () -> DoiNormalizer.normalize(doi));
+        long regexBytes = DoiResponseTest.allocatedPerRun(threads, () -> regex(doi));
+        //reading the allocation counter may itself allocate a little, which is spread over the runs
+        assertTrue("Bytes allocated per doi: normalizer " + normalizerBytes + ", regex " + regexBytes,
+                   normalizerBytes < 8 && regexBytes > 8);
+    }
+
+    private static String regex(String doi) {
+        String criterion = "doi.org/";
+        int i = doi.indexOf(criterion);
+        String suffix = i >= 0 ? doi.substring(i + criterion.length()) : doi;
+        Matcher matcher = REGEX.matcher(suffix);
+        return matcher.matches() ? suffix : null;
+    }
+}
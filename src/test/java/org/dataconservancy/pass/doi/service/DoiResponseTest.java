@@ -0,0 +1,163 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.junit.Test;
+
+/**
+ * Tests for writing responses, including a measure of the memory allocated to write a large one
+ */
+public class DoiResponseTest {
+
+    private String journalId = "https://pass.local/fcrepo/rest/journals/\"quoted\"";
+
+    /**
+     * the streamed response is the same JSON as the response built as an object
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void writeTest() throws Exception {
+        CrossrefRecord record = CrossrefRecord.parse(largeRecord(10).getBytes(StandardCharsets.UTF_8));
+        DoiResponse response = DoiResponse.journal(journalId, 0, record);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.write(out);
+        assertEquals(response.getBody(), read(out.toString("UTF-8")));
+
+        out = new ByteArrayOutputStream();
+        response.writeItem("10.1234/\u00e9", out);
+        JsonObject item = read(out.toString("UTF-8"));
+        assertEquals("10.1234/\u00e9", item.getString("doi"));
+        assertEquals(200, item.getInt("status"));
+        assertEquals(journalId, item.getString("journal-id"));
+        assertEquals(record.getJson(), item.getJsonObject("crossref"));
+
+        out = new ByteArrayOutputStream();
+        DoiResponse.error(404, "not found").writeItem("10.1234/x", out);
+        item = read(out.toString("UTF-8"));
+        assertEquals(404, item.getInt("status"));
+        assertEquals("not found", item.getString("error"));
+    }
+
+    /**
+     * streaming a large response allocates a fraction of the memory used to build and serialize it as an object
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void allocationTest() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        byte[] raw = largeRecord(2000).getBytes(StandardCharsets.UTF_8);
+        CrossrefRecord record = CrossrefRecord.parse(raw);
+        DoiResponse response = DoiResponse.journal(journalId, 0, record);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        Runnable built = () -> {
+            JsonObject jsonObject = Json.createObjectBuilder()
+                                        .add("journal-id", journalId)
+                                        .add("crossref", record.getJson())
+                                        .build();
+            try {
+                sink.write(jsonObject.toString().getBytes());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Runnable streamed = () -> {
+            try {
+                response.write(sink);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        long builtBytes = allocatedPerRun(threads, built);
+        long streamedBytes = allocatedPerRun(threads, streamed);
+        assertTrue("Bytes allocated per " + raw.length + " byte response: built " + builtBytes + ", streamed " +
+                   streamedBytes, streamedBytes * 10 < builtBytes);
+    }
+
+    static long allocatedPerRun(com.sun.management.ThreadMXBean threads, Runnable run) {
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 20; i++) {
+            run.run();
+        }
+        int runs = 50;
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < runs; i++) {
+            run.run();
+        }
+        return (threads.getThreadAllocatedBytes(id) - before) / runs;
+    }
+
+    private static JsonObject read(String json) {
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * @param references the number of references in the record
+     * @return a works record padded out with references, as for a long article
+     */
+    static String largeRecord(int references) {
+        StringBuilder json = new StringBuilder(
+            "{\"status\":\"ok\",\"message-type\":\"work\",\"message-version\":\"1.0.0\",\"message\":{" +
+            "\"DOI\":\"10.4137\\/cmc.s38446\",\"type\":\"journal-article\",\"reference\":[");
+        for (int i = 0; i < references; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"key\":\"ref").append(i).append("\",\"doi-asserted-by\":\"crossref\",")
+                .append("\"first-page\":\"").append(i).append("\",\"DOI\":\"10.1000\\/ref.").append(i)
+                .append("\",\"article-title\":\"A study of the effects of reference ").append(i)
+                .append(" on things\",\"volume\":\"12\",\"author\":\"Author ").append(i)
+                .append("\",\"year\":\"2001\",\"journal-title\":\"Journal of Examples\"}");
+        }
+        json.append("],\"container-title\":[\"Clinical Medicine Insights: Cardiology\"],")
+            .append("\"ISSN\":[\"1179-5468\",\"1179-5468\"],\"issn-type\":[{\"value\":\"1179-5468\",")
+            .append("\"type\":\"print\"},{\"value\":\"1179-5468\",\"type\":\"electronic\"}]}}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.QueueDispatcher;
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for finding journals with a single search of the PASS Elasticsearch index
+ */
+public class ElasticsearchJournalFinderTest {
+
+    private static final String[] NAMES = {"Fancy Journal", "Plain Journal", "Journal of Journals", "Annals"};
+    private static final String[] ISSNS = {"Print:0000-0019", "Online:0000-0027", "Print:0000-0035",
+                                           "Online:0000-0043", "Print:0000-0051", "Online:0000-006X"};
+
+    private final List<Journal> journals = new ArrayList<>();
+
+    private MockWebServer elasticsearch;
+    private ElasticsearchStandIn standIn;
+    private PassClient passClient;
+
+    @Before
+    public void setUp() throws Exception {
+        standIn = new ElasticsearchStandIn();
+        elasticsearch = new MockWebServer();
+        elasticsearch.setDispatcher(standIn);
+        elasticsearch.start();
+
+        //PASS answers the per-attribute lookups from the same journals as the stand-in
+        passClient = mock(PassClient.class);
+        when(passClient.findAllByAttribute(eq(Journal.class), eq("name"), any())).thenAnswer(i -> {
+            Set<URI> found = new HashSet<>();
+            for (Journal journal : journals) {
+                if (i.getArgument(2).equals(journal.getJournalName())) {
+                    found.add(journal.getId());
+                }
+            }
+            return found;
+        });
+        when(passClient.findAllByAttribute(eq(Journal.class), eq("issns"), anyString())).thenAnswer(i -> {
+            Set<URI> found = new HashSet<>();
+            for (Journal journal : journals) {
+                if (journal.getIssns().contains(i.<String>getArgument(2))) {
+                    found.add(journal.getId());
+                }
+            }
+            return found;
+        });
+        when(passClient.readResource(any(), eq(Journal.class))).thenAnswer(i -> {
+            for (Journal journal : journals) {
+                if (journal.getId().equals(i.getArgument(0))) {
+                    return journal;
+                }
+            }
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        elasticsearch.shutdown();
+    }
+
+    /**
+     * the single search picks a journal as good as the one picked by looking the name and each ISSN up separately,
+     * and the same one whenever there is a single best match
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void equivalenceTest() throws Exception {
+        Random random = new Random(2019);
+        for (int i = 0; i < 40; i++) {
+            add(URI.create("http://fcrepo:8080/fcrepo/rest/journals/" + i),
+                random.nextInt(5) == 0 ? null : NAMES[random.nextInt(NAMES.length)], randomIssns(random));
+        }
+
+        PassDoiServlet servlet = new PassDoiServlet();
+        servlet.passClient = passClient;
+        servlet.init(null);
+        try {
+            for (int i = 0; i < 200; i++) {
+                String name = NAMES[random.nextInt(NAMES.length)];
+                List<String> issns = randomIssns(random);
+                //a fresh index each time, so that every case is searched for rather than answered from the index
+                ElasticsearchJournalFinder finder = finder(100, new JournalIndex(passClient, 1000, 60000));
+
+                URI expected = servlet.find(name, issns);
+                URI found = finder.find(name, issns);
+
+                String query = name + " " + issns;
+                assertEquals(query, expected == null, found == null);
+                if (expected != null) {
+                    int best = score(expected, name, issns);
+                    assertEquals(query, best, score(found, name, issns));
+                    int tied = 0;
+                    for (Journal journal : journals) {
+                        if (score(journal.getId(), name, issns) == best) {
+                            tied++;
+                        }
+                    }
+                    if (tied == 1) {
+                        assertEquals(query, expected, found);
+                    }
+                }
+            }
+        } finally {
+            servlet.destroy();
+        }
+    }
+
+    /**
+     * names and ISSNs found by one search are not searched for again
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void indexedKeysAreNotSearchedTest() throws Exception {
+        URI id = URI.create("http://fcrepo:8080/fcrepo/rest/journals/1");
+        add(id, "Fancy Journal", asList("Print:0000-0019", "Online:0000-0027"));
+        JournalIndex journalIndex = new JournalIndex(passClient, 1000, 60000);
+        ElasticsearchJournalFinder finder = finder(100, journalIndex);
+
+        assertEquals(id, finder.find("Fancy Journal", singletonList("Print:0000-0019")));
+        assertEquals(1, standIn.getSearches().size());
+        assertEquals(1, journalIndex.cachedByName("Fancy Journal").size());
+        //PASS matches names exactly, so the index does too
+        assertNull(journalIndex.cachedByName("fancy journal"));
+
+        assertEquals(id, finder.find("Fancy Journal", asList("Print:0000-0019", "Online:0000-0027")));
+        assertEquals(2, standIn.getSearches().size());
+        //only the ISSN not already in the index was searched for
+        assertEquals(1, standIn.getSearches().get(1).getJsonObject("query").getJsonObject("bool")
+                             .getJsonArray("should").size());
+
+        assertEquals(id, finder.find("Fancy Journal", singletonList("Online:0000-0027")));
+        assertEquals(2, standIn.getSearches().size());
+    }
+
+    /**
+     * what a search finds is not put in the index when there were more hits than it returned
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void truncatedSearchIsNotIndexedTest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            add(URI.create("http://fcrepo:8080/fcrepo/rest/journals/" + i), "Annals",
+                singletonList(ISSNS[i]));
+        }
+        JournalIndex journalIndex = new JournalIndex(passClient, 1000, 60000);
+        ElasticsearchJournalFinder finder = finder(2, journalIndex);
+
+        assertTrue(finder.find("Annals", singletonList(ISSNS[1])) != null);
+        assertNull(journalIndex.cachedByName("Annals"));
+        assertNull(journalIndex.cachedByIssn(ISSNS[1]));
+    }
+
+    /**
+     * a failed search is reported, so that the caller can look the journal up another way
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test(expected = IOException.class)
+    public void failedSearchTest() throws Exception {
+        elasticsearch.setDispatcher(new QueueDispatcher());
+        elasticsearch.enqueue(new MockResponse().setResponseCode(503));
+        finder(100, new JournalIndex(passClient, 1000, 60000)).find("Annals", singletonList("Print:0000-0019"));
+    }
+
+    /**
+     * the servlet falls back on looking the name and ISSNs up separately when the search fails
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void servletFallbackTest() throws Exception {
+        URI id = URI.create("http://fcrepo:8080/fcrepo/rest/journals/1");
+        add(id, "Fancy Journal", singletonList("Print:0000-0019"));
+        elasticsearch.setDispatcher(new QueueDispatcher());
+        elasticsearch.enqueue(new MockResponse().setResponseCode(503));
+
+        PassDoiServlet servlet = new PassDoiServlet();
+        servlet.passClient = passClient;
+        servlet.init(null);
+        try {
+            servlet.journalFinder = finder(100, servlet.journalIndex);
+            //the journal is found, rather than created again
+            servlet.updateJournalInPass(journal(null, "Fancy Journal", "Print:0000-0019"));
+            verify(passClient, never()).createAndReadResource(any(), any());
+            verify(passClient).readResource(id, Journal.class);
+            assertEquals(1, elasticsearch.getRequestCount());
+        } finally {
+            servlet.destroy();
+        }
+    }
+
+    private ElasticsearchJournalFinder finder(int limit, JournalIndex journalIndex) {
+        return new ElasticsearchJournalFinder(new OkHttpClient(), elasticsearch.url("/pass/").toString(), limit,
+                                              journalIndex);
+    }
+
+    private void add(URI id, String name, List<String> issns) {
+        Journal journal = ElasticsearchStandIn.journal(id, name, issns);
+        journals.add(journal);
+        standIn.add(journal);
+    }
+
+    private static Journal journal(URI id, String name, String issn) {
+        return ElasticsearchStandIn.journal(id, name, new ArrayList<>(singletonList(issn)));
+    }
+
+    private int score(URI id, String name, List<String> issns) {
+        for (Journal journal : journals) {
+            if (journal.getId().equals(id)) {
+                int score = name.equals(journal.getJournalName()) ? 1 : 0;
+                for (String issn : issns) {
+                    if (journal.getIssns().contains(issn)) {
+                        score++;
+                    }
+                }
+                return score;
+            }
+        }
+        return -1;
+    }
+
+    private static List<String> randomIssns(Random random) {
+        List<String> issns = new ArrayList<>();
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            String issn = ISSNS[random.nextInt(ISSNS.length)];
+            if (!issns.contains(issn)) {
+                issns.add(issn);
+            }
+        }
+        return issns;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.model.Journal;
+
+/**
+ * Stands in for the PASS Elasticsearch index in tests, answering the bool queries of
+ * {@link ElasticsearchJournalFinder} from a list of journals. A term matches a journal whose name is the value, or
+ * whose ISSNs include it, and each hit lists the names of the terms it matched.
+ */
+class ElasticsearchStandIn extends Dispatcher {
+
+    private final List<Journal> journals = new CopyOnWriteArrayList<>();
+    private final List<JsonObject> searches = new CopyOnWriteArrayList<>();
+
+    void add(Journal journal) {
+        journals.add(journal);
+    }
+
+    /**
+     * @return the bodies of the searches received so far
+     */
+    List<JsonObject> getSearches() {
+        return searches;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        if (!"POST".equals(request.getMethod()) || !request.getPath().endsWith("/_search")) {
+            return new MockResponse().setResponseCode(404);
+        }
+        JsonObject search;
+        try (JsonReader reader = Json.createReader(new StringReader(request.getBody().readUtf8()))) {
+            search = reader.readObject();
+        }
+        searches.add(search);
+
+        List<JsonObject> terms = new ArrayList<>();
+        for (JsonValue should : search.getJsonObject("query").getJsonObject("bool").getJsonArray("should")) {
+            terms.add(((JsonObject) should).getJsonObject("term"));
+        }
+
+        JsonArrayBuilder hits = Json.createArrayBuilder();
+        int total = 0;
+        for (Journal journal : journals) {
+            JsonArrayBuilder matched = Json.createArrayBuilder();
+            boolean matches = false;
+            for (JsonObject term : terms) {
+                String field = term.keySet().iterator().next();
+                String value = term.getJsonObject(field).getString("value");
+                if ("name".equals(field) ? value.equals(journal.getJournalName()) :
+                    journal.getIssns() != null && journal.getIssns().contains(value)) {
+                    matched.add(term.getJsonObject(field).getString("_name"));
+                    matches = true;
+                }
+            }
+            if (matches && total++ < search.getInt("size")) {
+                hits.add(Json.createObjectBuilder()
+                             .add("_source", Json.createObjectBuilder().add("@id", journal.getId().toString()))
+                             .add("matched_queries", matched));
+            }
+        }
+
+        JsonObject body = Json.createObjectBuilder()
+                              .add("hits", Json.createObjectBuilder()
+                                  .add("total", Json.createObjectBuilder().add("value", total).add("relation", "eq"))
+                                  .add("hits", hits))
+                              .build();
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body.toString());
+    }
+
+    static Journal journal(URI id, String name, List<String> issns) {
+        Journal journal = new Journal();
+        journal.setId(id);
+        journal.setJournalName(name);
+        journal.setIssns(issns);
+        return journal;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the expiring LRU cache
+ */
+public class ExpiringLruCacheTest {
+
+    private AtomicLong now = new AtomicLong(1000);
+
+    /**
+     * entries are returned until their time to live runs out
+     */
+    @Test
+    public void expiryTest() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, 100, now::get);
+        cache.put("a", "A");
+
+        now.addAndGet(99);
+        assertEquals("A", cache.get("a"));
+
+        now.addAndGet(1);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * expired entries are kept for the stale time to live, for stale use only
+     */
+    @Test
+    public void staleTest() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, 100, 50, now::get);
+        cache.put("a", "A");
+
+        now.addAndGet(100);
+        assertNull(cache.get("a"));
+        assertEquals("A", cache.getStale("a"));
+
+        now.addAndGet(49);
+        assertEquals("A", cache.getStale("a"));
+
+        now.addAndGet(1);
+        assertNull(cache.getStale("a"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * when full, the least recently used entry is the one evicted
+     */
+    @Test
+    public void lruEvictionTest() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2, 100, now::get);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        //touch a, so that b becomes the eldest
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * a zero capacity cache never holds anything
+     */
+    @Test
+    public void disabledCacheTest() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(0, 100, now::get);
+        cache.put("a", "A");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    /**
+     * only an entry read often enough, and close enough to its expiry, may be claimed for a refresh, and only
+     * once until the claim is abandoned or the entry is replaced
+     */
+    @Test
+    public void claimRefreshTest() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, 100, now::get);
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+
+        now.addAndGet(80);
+        assertFalse(cache.claimRefresh("a", 20, 2));
+        assertEquals("A", cache.get("a"));
+        assertTrue(cache.claimRefresh("a", 20, 2));
+        assertFalse(cache.claimRefresh("a", 20, 2));
+
+        cache.abandonRefresh("a");
+        assertTrue(cache.claimRefresh("a", 20, 2));
+
+        //a new value starts over
+        cache.put("a", "A2");
+        assertFalse(cache.claimRefresh("a", 99, 0));
+        assertTrue(cache.claimRefresh("a", 100, 0));
+        now.addAndGet(100);
+        cache.abandonRefresh("a");
+        assertFalse(cache.claimRefresh("a", 100, 0));
+        assertFalse(cache.claimRefresh("b", 100, 0));
+    }
+}
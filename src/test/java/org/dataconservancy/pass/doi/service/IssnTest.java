@@ -0,0 +1,80 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for ISSNs packed into longs
+ */
+public class IssnTest {
+
+    /**
+     * valid ISSNs, of each type PASS uses, survive packing
+     */
+    @Test
+    public void roundTripTest() {
+        for (String issn : new String[] {"Print:1179-5468", "Online:1179-5468", ":1234-5679", "Print:0000-006X",
+                                         "Online:0000-0000", ":9999-9994"}) {
+            long packed = Issn.parse(issn);
+            assertNotEquals(issn, Issn.INVALID, packed);
+            assertEquals(issn, Issn.toString(packed));
+        }
+        assertEquals("Print:0000-006X", Issn.toString(Issn.parse("Print", " 0000-006x ")));
+        assertEquals("1179-5468", Issn.value(Issn.parse("Online:1179-5468")));
+    }
+
+    /**
+     * ISSNs with the wrong check character, the wrong shape, or a type PASS does not use are not valid
+     */
+    @Test
+    public void invalidTest() {
+        for (String issn : new String[] {"Print:1234-5678", ":0000-0001", "Print:1179-546X", "Print:1179-54680",
+                                         "Print:11795468", "Print:1179-54a8", "Print:X179-5468", "Other:1179-5468",
+                                         "1179-5468", "", null}) {
+            assertEquals(String.valueOf(issn), Issn.INVALID, Issn.parse(issn));
+        }
+        assertTrue(Issn.isValid("1179-5468"));
+        assertFalse(Issn.isValid("1179-5467"));
+    }
+
+    /**
+     * the check character made for any seven digits is the one validation expects, and every digit and type
+     * packs differently
+     */
+    @Test
+    public void checkCharacterTest() {
+        Set<Long> packed = new HashSet<>();
+        for (int digits = 0; digits < 10000000; digits += 997) {
+            long issn = Issn.of(digits);
+            String value = Issn.value(issn);
+            assertTrue(value, Issn.isValid(value));
+            assertEquals(issn, Issn.parse(":" + value));
+            assertTrue(packed.add(Issn.parse("Print:" + value)));
+            assertTrue(packed.add(Issn.parse("Online:" + value)));
+            assertEquals(issn, Issn.untyped(Issn.parse("Online:" + value)));
+        }
+    }
+}
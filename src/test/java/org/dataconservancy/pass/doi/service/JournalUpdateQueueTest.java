@@ -0,0 +1,202 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Journal;
+import org.dataconservancy.pass.model.PassEntity;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for writing new ISSNs of PASS journals in the background
+ */
+public class JournalUpdateQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final URI journalId = URI.create("http://fcrepo:8080/fcrepo/rest/journals/1");
+    private final URI otherJournalId = URI.create("http://fcrepo:8080/fcrepo/rest/journals/2");
+
+    private PassClient passClient;
+
+    @Before
+    public void setUp() {
+        passClient = mock(PassClient.class);
+        when(passClient.readResource(any(), any())).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(i.getArgument(0));
+            journal.setIssns(new ArrayList<>(singletonList("Print:0000-0000")));
+            return journal;
+        });
+    }
+
+    /**
+     * ISSNs queued for a journal within the delay are written together, with a single update
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void coalesceTest() throws Exception {
+        JournalUpdateQueue queue = new JournalUpdateQueue(passClient, 200, 3, 10, null, false,
+                                                          Executors.defaultThreadFactory());
+        queue.merge(journalId, singletonList("Print:0000-0019"));
+        queue.merge(journalId, asList("Print:0000-0019", "Online:0000-0027"));
+        waitFor(() -> queue.getWritten() == 1);
+
+        ArgumentCaptor<PassEntity> written = ArgumentCaptor.forClass(PassEntity.class);
+        verify(passClient, times(1)).updateResource(written.capture());
+        assertEquals(asList("Print:0000-0000", "Print:0000-0019", "Online:0000-0027"),
+                     ((Journal) written.getValue()).getIssns());
+        assertEquals(1, queue.getMerged());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    /**
+     * a failed write is tried again, and given up after the last attempt
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void retryTest() throws Exception {
+        doThrow(new RuntimeException("Fedora is down")).doNothing().when(passClient).updateResource(any());
+        JournalUpdateQueue queue = new JournalUpdateQueue(passClient, 10, 2, 10, null, false,
+                                                          Executors.defaultThreadFactory());
+        queue.merge(journalId, singletonList("Print:0000-0019"));
+        waitFor(() -> queue.getWritten() == 1);
+        assertEquals(1, queue.getRetried());
+
+        doThrow(new RuntimeException("Fedora is down")).when(passClient).updateResource(any());
+        queue.merge(otherJournalId, singletonList("Print:0000-0019"));
+        waitFor(() -> queue.getFailed() == 1);
+        assertEquals(2, queue.getRetried());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    /**
+     * closing the queue writes whatever is still queued at once, rather than waiting for the delay
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void closeWritesQueuedUpdatesTest() throws Exception {
+        JournalUpdateQueue queue = new JournalUpdateQueue(passClient, 3600000, 3, 10, null, false,
+                                                          Executors.defaultThreadFactory());
+        queue.merge(journalId, singletonList("Print:0000-0019"));
+        queue.merge(otherJournalId, singletonList("Print:0000-0019"));
+        verify(passClient, never()).updateResource(any());
+
+        queue.close();
+        verify(passClient, times(2)).updateResource(any());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * updates left in the log by an earlier run are queued again, and the log is emptied once they are written;
+     * updates which cannot be written as the queue closes are left in the log
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void logTest() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("journal-updates.log");
+        Files.write(log, (journalId + "\tPrint:0000-0019\n" +
+                          otherJournalId + "\tPrint:0000-0019\n" +
+                          journalId + "\tOnline:0000-0027\n" +
+                          otherJournalId).getBytes(StandardCharsets.UTF_8));
+
+        JournalUpdateQueue queue = new JournalUpdateQueue(passClient, 3600000, 3, 10, log, true,
+                                                          Executors.defaultThreadFactory());
+        assertEquals(2, queue.size());
+        queue.close();
+        verify(passClient, times(2)).updateResource(any());
+        assertEquals(0, Files.size(log));
+
+        doThrow(new RuntimeException("Fedora is down")).when(passClient).updateResource(any());
+        queue = new JournalUpdateQueue(passClient, 3600000, 3, 10, log, true, Executors.defaultThreadFactory());
+        queue.merge(journalId, singletonList("Print:0000-0035"));
+        queue.close();
+        assertEquals(journalId + "\tPrint:0000-0035\n",
+                     new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * a line of the log cut short by a crash, even one whose ISSN was cut short rather than its line ending, is
+     * discarded with everything after it, and later updates are appended after the last whole line
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void tornLogTest() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("journal-updates.log");
+        String whole = journalId + "\tPrint:0000-0019\n";
+        Files.write(log, (whole + otherJournalId + "\tPrint:0000-00\n" + otherJournalId + "\tOnline:0000-0027\n")
+            .getBytes(StandardCharsets.UTF_8));
+
+        JournalUpdateQueue queue = new JournalUpdateQueue(passClient, 3600000, 3, 10, log, true,
+                                                          Executors.defaultThreadFactory());
+        assertEquals(1, queue.size());
+        assertEquals(whole, new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+
+        doThrow(new RuntimeException("Fedora is down")).when(passClient).updateResource(any());
+        queue.merge(otherJournalId, singletonList("Online:0000-0035"));
+        queue.close();
+        assertEquals(whole + otherJournalId + "\tOnline:0000-0035\n",
+                     new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+
+        Files.write(log, (whole + journalId + "\tPrint:0000-0027").getBytes(StandardCharsets.UTF_8));
+        queue = new JournalUpdateQueue(passClient, 3600000, 3, 10, log, true, Executors.defaultThreadFactory());
+        assertEquals(1, queue.size());
+        assertEquals(whole, new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+        queue.close();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the journal versions cached results are checked against
+ */
+public class JournalVersionsTest {
+
+    /**
+     * a result is out of date once its journal is updated, and only its journal
+     */
+    @Test
+    public void updateTest() {
+        JournalVersions versions = new JournalVersions(10);
+        long stamp = versions.current();
+        assertTrue(versions.isCurrent("journal-1", stamp));
+
+        versions.updated("journal-1", versions.current());
+        assertFalse(versions.isCurrent("journal-1", stamp));
+        assertTrue(versions.isCurrent("journal-2", stamp));
+        assertTrue(versions.isCurrent("journal-1", versions.current()));
+    }
+
+    /**
+     * once an update is forgotten, every result stamped before it is out of date, but later results are not
+     */
+    @Test
+    public void forgottenUpdateTest() {
+        JournalVersions versions = new JournalVersions(2);
+        long before = versions.current();
+        versions.updated("journal-1", versions.current());
+        long between = versions.current();
+        versions.updated("journal-2", versions.current());
+        assertTrue(versions.isCurrent("journal-3", between));
+
+        //journal-1 is forgotten
+        versions.updated("journal-3", versions.current());
+        assertFalse(versions.isCurrent("journal-1", before));
+        assertFalse(versions.isCurrent("journal-4", before));
+        assertTrue(versions.isCurrent("journal-1", between));
+        assertFalse(versions.isCurrent("journal-2", between));
+        assertTrue(versions.isCurrent("journal-4", between));
+    }
+
+    /**
+     * a result built with an update of its own journal is current, unless the journal was updated meanwhile
+     */
+    @Test
+    public void ownUpdateTest() {
+        JournalVersions versions = new JournalVersions(10);
+        long own = versions.updated("journal-1", versions.current());
+        assertTrue(versions.isCurrent("journal-1", own));
+
+        long stamp = versions.current();
+        versions.updated("journal-1", versions.current());
+        long late = versions.updated("journal-1", stamp);
+        assertFalse(versions.isCurrent("journal-1", late));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import javax.json.Json;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the expiry of active requests under load. Crossref and PASS are left out of the picture by stubbing
+ * out the resolution of a doi.
+ */
+public class LockExpiryStressTest {
+
+    private CountDownLatch release;
+    //released by each request as it starts resolving its doi
+    private final Semaphore resolving = new Semaphore(0);
+
+    private PassDoiServlet underTest;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        release = new CountDownLatch(0);
+        underTest = new PassDoiServlet() {
+            @Override
+            DoiResponse resolve(String doi) {
+                resolving.release();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new DoiResponse(200, Json.createObjectBuilder().add("journal-id", doi).build());
+            }
+        };
+        underTest.init(null);
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+        underTest.destroy();
+    }
+
+    /**
+     * a sustained stream of requests for distinct dois must not leave a thread behind for each request
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void threadCountStaysFlatTest() throws Exception {
+        //warm up the pool and the expiry scheduler
+        runRequests(0, 100);
+        int threadsBefore = Thread.activeCount();
+
+        int requests = 20000;
+        runRequests(100, requests);
+
+        int threadsAfter = Thread.activeCount();
+        assertTrue("Thread count grew from " + threadsBefore + " to " + threadsAfter,
+                   threadsAfter - threadsBefore < 10);
+    }
+
+    /**
+     * an active request which runs past the cache period no longer holds up new requests for its doi
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void activeRequestExpiresTest() throws Exception {
+        release = new CountDownLatch(1);
+        underTest.cachePeriod = 10;
+
+        String doi = "10.1234/slow";
+        Future<DoiResponse> first = executor.submit(() -> underTest.lookup(doi));
+        assertTrue(resolving.tryAcquire(5, SECONDS));
+        //the first request is active, so this one waits on it
+        CompletableFuture<DoiResponse> second = underTest.lookupAsync(doi);
+        assertEquals(1, underTest.coalescedRequests.get());
+
+        //expiry tasks run in the order they fall due, so once this has run the first request's lock has expired
+        CountDownLatch expired = new CountDownLatch(1);
+        underTest.lockExpiry.schedule(expired::countDown, underTest.cachePeriod, MILLISECONDS);
+        assertTrue(expired.await(5, SECONDS));
+
+        //the lock has expired, so this request becomes the active one rather than waiting on the first
+        Future<DoiResponse> third = executor.submit(() -> underTest.lookup(doi));
+        assertTrue(resolving.tryAcquire(5, SECONDS));
+        assertFalse(second.isDone());
+
+        release.countDown();
+        assertEquals(200, first.get().getStatus());
+        assertEquals(200, second.get().getStatus());
+        assertEquals(200, third.get().getStatus());
+        assertEquals(1, underTest.coalescedRequests.get());
+    }
+
+    private void runRequests(int from, int to) throws Exception {
+        List<Future<DoiResponse>> results = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            String doi = "10.1234/" + i;
+            results.add(executor.submit(() -> underTest.lookup(doi)));
+        }
+        for (Future<DoiResponse> result : results) {
+            assertEquals(200, result.get().getStatus());
+        }
+    }
+}
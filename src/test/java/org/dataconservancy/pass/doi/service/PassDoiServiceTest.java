@@ -19,12 +19,23 @@ package org.dataconservancy.pass.doi.service;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.util.ArrayList;
@@ -33,17 +44,40 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
-
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassJsonAdapter;
 import org.dataconservancy.pass.client.adapter.PassJsonAdapterBasic;
 import org.dataconservancy.pass.model.Journal;
+import org.dataconservancy.pass.model.PassEntity;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -58,6 +92,9 @@ public class PassDoiServiceTest {
 
     private PassDoiServlet underTest;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private PassJsonAdapter json = new PassJsonAdapterBasic();
 
     private URI newJournalId = URI.create("newlyCreatedId");
@@ -65,15 +102,15 @@ public class PassDoiServiceTest {
     private Journal completeJournal;
     private Journal missingNameJournal;
 
-    private String issn1 = String.join(":", PassDoiServlet.IssnType.PRINT.getPassTypeString(), "0000-0001");
-    private String issn2 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0002");
+    private String issn1 = String.join(":", PassDoiServlet.IssnType.PRINT.getPassTypeString(), "0000-0019");
+    private String issn2 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0027");
 
-    private String issn3 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0003");
-    private String issn4 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0004");
+    private String issn3 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0035");
+    private String issn4 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0043");
 
 
-    private String issn5 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0005");
-    private String issn6 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0006");
+    private String issn5 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-0051");
+    private String issn6 = String.join(":", PassDoiServlet.IssnType.ELECTRONIC.getPassTypeString(), "0000-006X");
 
     private URI completeId = URI.create("http://example.org:2020/" + UUID.randomUUID().toString());
     private URI missingNameId = URI.create("http://example.org:2020/" + UUID.randomUUID().toString());
@@ -183,7 +220,7 @@ public class PassDoiServiceTest {
                                        "{\"date-parts\":[[2016,1]]},\"references-count\":74,\"alternative-id\":[\"10" +
                                        ".4137\\/CMC.S38446\"],\"URL\":" +
                                        "\"http:\\/\\/dx.doi.org\\/10.4137\\/cmc.s38446\",\"relation\":{}," +
-                                       "\"ISSN\":[\"1179-5468\",\"1179-5468\", \"1234-5678\"]," +
+                                       "\"ISSN\":[\"1179-5468\",\"1179-5468\", \"1234-5679\"]," +
                                        "\"issn-type\":[{\"value\":" +
                                        "\"1179-5468\",\"type\":\"print\"},{\"value\":\"1179-5468\"," +
                                        "\"type\":\"electronic\"}]}}";
@@ -250,6 +287,11 @@ public class PassDoiServiceTest {
         underTest.init(null);
     }
 
+    @After
+    public void tearDown() {
+        underTest.destroy();
+    }
+
 
     /**
      * We test that JSON metadata for a journal article populates a PASS Journal object as expected
@@ -265,7 +307,7 @@ public class PassDoiServiceTest {
         assertEquals(2, passJournal.getIssns().size());
         assertTrue(passJournal.getIssns().contains("Print:1179-5468"));
         assertTrue(passJournal.getIssns().contains("Online:1179-5468"));
-        assertFalse(passJournal.getIssns().contains(":1234-5678"));
+        assertFalse(passJournal.getIssns().contains(":1234-5679"));
 
     }
 
@@ -283,11 +325,58 @@ public class PassDoiServiceTest {
         assertEquals(3, passJournal.getIssns().size());
         assertTrue(passJournal.getIssns().contains("Print:1179-5468"));
         assertTrue(passJournal.getIssns().contains("Online:1179-5468"));
-        assertTrue(passJournal.getIssns().contains(":1234-5678"));
+        assertTrue(passJournal.getIssns().contains(":1234-5679"));
+
+    }
+
+    /**
+     * ISSNs from Crossref which fail their checksum are left out of the journal, and are never looked up in PASS
+     */
+    @Test
+    public void invalidIssnTest() {
+        JsonReader reader = Json.createReader(new StringReader(xrefJsonExtraIssn.replace("1234-5679", "1234-5678")));
+        JsonObject object = reader.readObject();
+        reader.close();
+        Journal passJournal = underTest.buildPassJournal(object);
+
+        assertEquals(Arrays.asList("Print:1179-5468", "Online:1179-5468"), passJournal.getIssns());
+        assertEquals(1, underTest.invalidIssns.get());
 
+        assertEquals(completeId, underTest.find(journalName, Arrays.asList(issn1, "Print:1234-5678", ":0000-0001")));
+        verify(passClientMock, never()).findAllByAttribute(Journal.class, "issns", "Print:1234-5678");
+        verify(passClientMock, never()).findAllByAttribute(Journal.class, "issns", ":0000-0001");
     }
 
 
+    /**
+     * the journal index holds what PASS answers for exactly the name it was asked for, so names differing only in
+     * case are looked up separately, while ISSNs written differently are looked up once, in canonical form
+     */
+    @Test
+    public void journalIndexKeysTest() {
+        URI otherId = URI.create("http://example.org:2020/" + UUID.randomUUID().toString());
+        when(passClientMock.findAllByAttribute(Journal.class, "name", journalName)).thenReturn(
+            new HashSet<>(Collections.singleton(completeId)));
+        when(passClientMock.findAllByAttribute(Journal.class, "name", journalName.toUpperCase())).thenReturn(
+            new HashSet<>(Collections.singleton(otherId)));
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", issn6)).thenReturn(
+            new HashSet<>(Collections.singleton(otherId)));
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Collections.singleton(otherId),
+                         underTest.journalIndex.findByName(journalName.toUpperCase()));
+            assertEquals(Collections.singleton(completeId), underTest.journalIndex.findByName(journalName));
+        }
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "name", journalName);
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "name", journalName.toUpperCase());
+
+        String lowerCaseCheck = issn6.replace('X', 'x');
+        assertEquals(Collections.singleton(otherId), underTest.journalIndex.findByIssn(lowerCaseCheck));
+        assertEquals(Collections.singleton(otherId), underTest.journalIndex.findByIssn(issn6));
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn6);
+        verify(passClientMock, never()).findAllByAttribute(Journal.class, "issns", lowerCaseCheck);
+    }
+
     /**
      * we test the update method to make sure journals with various characteristics behave as expected
      */
@@ -304,6 +393,10 @@ public class PassDoiServiceTest {
         assertEquals(xrefJournal.getIssns(), newJournal.getIssns());
         assertEquals(xrefJournal.getJournalName(), newJournal.getJournalName());
 
+        //the journal index now knows about the new journal, but the mocked PASS client cannot read it back,
+        //so forget it before the cases below which share its name
+        underTest.journalIndex.clear();
+
         //test that a journal not needing an update does not change in PASS
         xrefJournal = new Journal();
         xrefJournal.getIssns().add(issn1);
@@ -350,6 +443,197 @@ public class PassDoiServiceTest {
         assertEquals(nlmta, newJournal.getNlmta());
     }
 
+    /**
+     * Test that with write-behind enabled, new ISSNs for a journal are returned at once and written to PASS later
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void journalUpdateWriteBehindTest() throws Exception {
+        //PASS would return a fresh copy of the journal each time it is read
+        when(passClientMock.readResource(missingOneIssnId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(missingOneIssnId);
+            journal.setJournalName(journalName);
+            journal.setIssns(new ArrayList<>(Collections.singletonList(issn5)));
+            return journal;
+        });
+        underTest.journalUpdates = new JournalUpdateQueue(passClientMock, 3600000, 3, 1000, null, false,
+                                                          Executors.defaultThreadFactory());
+
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn5);
+        xrefJournal.getIssns().add(issn6);
+        Journal newJournal = underTest.updateJournalInPass(xrefJournal);
+        assertEquals(Arrays.asList(issn5, issn6), newJournal.getIssns());
+        verify(passClientMock, never()).updateResource(any());
+
+        underTest.journalUpdates.close();
+        ArgumentCaptor<PassEntity> written = ArgumentCaptor.forClass(PassEntity.class);
+        verify(passClientMock, times(1)).updateResource(written.capture());
+        assertEquals(Arrays.asList(issn5, issn6), ((Journal) written.getValue()).getIssns());
+    }
+
+    /**
+     * Test that the journal index answers repeated find() calls without going back to PASS, and that it
+     * learns about journals created by the service
+     */
+    @Test
+    public void journalIndexTest() {
+        when(passClientMock.findAllByAttribute(Journal.class, "name", journalName)).thenReturn(
+            new HashSet<>(Collections.singleton(completeId)));
+
+        assertEquals(completeId, underTest.find(journalName, Arrays.asList(issn1, issn2)));
+        assertEquals(completeId, underTest.find(journalName, Arrays.asList(issn1, issn2)));
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "name", journalName);
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn1);
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn2);
+
+        //a journal created by the service can be found without asking PASS again
+        Journal xrefJournal = new Journal();
+        xrefJournal.getIssns().add(issn6);
+        xrefJournal.setJournalName("Advanced Research in Animal Husbandry");
+        assertEquals(newJournalId, underTest.updateJournalInPass(xrefJournal).getId());
+
+        assertEquals(newJournalId, underTest.find("Advanced Research in Animal Husbandry",
+                                                  Collections.singletonList(issn6)));
+        verify(passClientMock, times(1)).findAllByAttribute(Journal.class, "issns", issn6);
+    }
+
+    /**
+     * Test that preloading the journal index reads every journal in PASS, so that find() need not query PASS
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void journalIndexPreloadTest() throws Exception {
+        doAnswer(i -> {
+            Consumer<URI> processor = i.getArgument(0);
+            for (URI id : Arrays.asList(completeId, missingNameId, missingOneIssnId)) {
+                processor.accept(id);
+            }
+            return 3;
+        }).when(passClientMock).processAllEntities(any(), eq(Journal.class));
+
+        assertEquals(3, underTest.journalIndex.preload(2, Executors.defaultThreadFactory()));
+        assertEquals(new HashSet<>(Arrays.asList(completeId, missingOneIssnId)),
+                     underTest.journalIndex.cachedByName(journalName));
+        assertEquals(Collections.singleton(missingNameId), underTest.journalIndex.cachedByIssn(issn4));
+
+        assertEquals(completeId, underTest.find(journalName, Arrays.asList(issn1, issn2)));
+        verify(passClientMock, never()).findAllByAttribute(eq(Journal.class), any(), any());
+    }
+
+    /**
+     * Test that nothing is preloaded if a journal cannot be read, since the entries it belongs in would be
+     * incomplete
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void journalIndexPreloadFailureTest() throws Exception {
+        URI unreadable = new URI("http://example.org/fcrepo/rest/journals/unreadable");
+        when(passClientMock.readResource(unreadable, Journal.class)).thenThrow(new RuntimeException("PASS is down"));
+        doAnswer(i -> {
+            Consumer<URI> processor = i.getArgument(0);
+            for (URI id : Arrays.asList(completeId, unreadable, missingOneIssnId)) {
+                processor.accept(id);
+            }
+            return 3;
+        }).when(passClientMock).processAllEntities(any(), eq(Journal.class));
+
+        try {
+            underTest.journalIndex.preload(2, Executors.defaultThreadFactory());
+            fail("Preloading should fail when a journal cannot be read");
+        } catch (RuntimeException e) {
+            assertEquals("PASS is down", e.getMessage());
+        }
+        assertNull(underTest.journalIndex.cachedByName(journalName));
+        assertNull(underTest.journalIndex.cachedByIssn(issn1));
+    }
+
+    /**
+     * Test that the PASS queries made by find() run concurrently: each query waits until every one of them has
+     * started, which they can only all do if they run at once
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void findQueriesRunConcurrentlyTest() throws Exception {
+        CountDownLatch started = new CountDownLatch(4);
+        AtomicInteger overlapped = new AtomicInteger();
+        when(passClientMock.findAllByAttribute(eq(Journal.class), any(), any())).thenAnswer(i -> {
+            started.countDown();
+            if (started.await(5, TimeUnit.SECONDS)) {
+                overlapped.incrementAndGet();
+            }
+            return new HashSet<>(Collections.singleton(completeId));
+        });
+
+        URI resultUri = underTest.find(journalName, Arrays.asList(issn1, issn2, issn3));
+
+        assertEquals(completeId, resultUri);
+        verify(passClientMock, times(4)).findAllByAttribute(eq(Journal.class), any(), any());
+        assertEquals(4, overlapped.get());
+    }
+
+    /**
+     * Test that a PASS query which takes too long is left out of the scoring, rather than failing the find()
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void findScoresWithoutSlowQueriesTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(passClientMock.findAllByAttribute(Journal.class, "name", journalName)).thenAnswer(i -> {
+            release.await();
+            return new HashSet<>(Collections.singleton(missingNameId));
+        });
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", issn3)).thenReturn(
+            new HashSet<>(Collections.singleton(missingNameId)));
+        underTest.lookupTimeout = 50;
+
+        try {
+            URI resultUri = underTest.find(journalName, Arrays.asList(issn1, issn2, issn3));
+
+            //without the name, the journal with two matching issns wins
+            assertEquals(completeId, resultUri);
+            assertEquals(1, underTest.abandonedLookups.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Test that when PASS is too slow to answer any lookup, the journal is not taken to be missing and created, but
+     * the request is answered with a 503 to be tried again
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void slowPassDoesNotCreateJournalTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(passClientMock.findAllByAttribute(eq(Journal.class), any(), any())).thenAnswer(i -> {
+            release.await();
+            return new HashSet<>();
+        });
+        underTest.lookupTimeout = 50;
+
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            DoiResponse result = underTest.lookup("10.4137/cmc.s38446");
+            assertEquals(503, result.getStatus());
+            verify(passClientMock, never()).createAndReadResource(any(), any());
+            assertEquals(3, underTest.abandonedLookups.get());
+            assertNull(underTest.resultCache.get("10.4137/cmc.s38446"));
+        } finally {
+            release.countDown();
+        }
+    }
+
     /**
      * Test that the find() method returns the urI best matching the supplied arguments
      */
@@ -395,6 +679,606 @@ public class PassDoiServiceTest {
                      object.getJsonObject("message").getJsonArray("ISSN"));
     }
 
+    /**
+     * test that a repeated lookup for a doi is answered from the cache rather than from Crossref,
+     * and that unsuccessful lookups are not cached
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testXrefLookupIsCached() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.enqueue(new MockResponse().setResponseCode(404).setBody("Resource not found."));
+            crossref.enqueue(new MockResponse().setResponseCode(404).setBody("Resource not found."));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            String realDoi = "10.4137/cmc.s38446";
+            JsonObject first = underTest.retrieveXrefMetdata(realDoi);
+            JsonObject second = underTest.retrieveXrefMetdata(realDoi);
+            assertEquals(first, second);
+            assertEquals(1, crossref.getRequestCount());
+            assertEquals("/v1/works/" + realDoi, crossref.takeRequest().getPath());
+            assertEquals(1, underTest.xrefCache.getHits());
+
+            String badDoi = "10.1212/abc.DEF";
+            assertEquals("Resource not found.", underTest.retrieveXrefMetdata(badDoi).getString("error"));
+            assertEquals("Resource not found.", underTest.retrieveXrefMetdata(badDoi).getString("error"));
+            assertEquals(3, crossref.getRequestCount());
+        }
+    }
+
+    /**
+     * test that a Crossref response larger than the maximum body size is not read, whether or not its length
+     * is given up front
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void xrefMaxBodyTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.enqueue(new MockResponse().setChunkedBody(xrefJson, 64));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            underTest.xrefMaxBody = xrefJson.length() - 1;
+
+            assertNull(underTest.retrieveXrefRecord("10.4137/cmc.s38446"));
+            assertNull(underTest.retrieveXrefRecord("10.4137/cmc.s38446"));
+            assertEquals(0, underTest.xrefCache.size());
+        }
+    }
+
+    /**
+     * test that a lookup throttled by Crossref gets a 503 rather than a 500, and is not cached
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void throttledLookupTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setResponseCode(429).setBody("Rate limit exceeded"));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            DoiResponse response = underTest.lookup("10.4137/cmc.s38446");
+            assertEquals(503, response.getStatus());
+            assertEquals(0, underTest.xrefCache.size());
+            assertEquals(1, underTest.xrefRateLimiter.getThrottledResponses());
+        }
+    }
+
+    /**
+     * test that the last known record for a doi is served, marked as stale, when Crossref fails
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void staleFallbackTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.enqueue(new MockResponse().setResponseCode(500).setBody("Internal Server Error"));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            underTest.xrefCache = new ExpiringLruCache<>(10, 1, 60000);
+
+            String doi = "10.4137/cmc.s38446";
+            DoiResponse fresh = underTest.lookup(doi);
+            assertEquals(200, fresh.getStatus());
+            assertFalse(fresh.getBody().containsKey("stale"));
+
+            //the second lookup finds the journal created by the first
+            Journal created = new Journal();
+            created.setId(newJournalId);
+            when(passClientMock.readResource(newJournalId, Journal.class)).thenReturn(created);
+            //the result of the first lookup would answer the second without going to Crossref
+            underTest.resultCache.clear();
+            Thread.sleep(10);
+            DoiResponse stale = underTest.lookup(doi);
+            assertEquals(2, crossref.getRequestCount());
+            assertEquals(200, stale.getStatus());
+            assertTrue(stale.getBody().getBoolean("stale"));
+            assertEquals(fresh.getBody().getJsonObject("crossref"), stale.getBody().getJsonObject("crossref"));
+        }
+    }
+
+    /**
+     * test that records are kept in the local store, and found there once the in-memory cache has lost them, as
+     * after a restart
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void xrefStoreTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            underTest.xrefStore = new CrossrefRecordStore(folder.getRoot().toPath(), 1024 * 1024, 64 * 1024);
+
+            String doi = "10.4137/cmc.s38446";
+            JsonObject first = underTest.retrieveXrefMetdata(doi);
+            assertEquals(1, underTest.xrefStore.count());
+
+            underTest.xrefCache.clear();
+            assertEquals(first, underTest.retrieveXrefMetdata(doi));
+            assertEquals(1, crossref.getRequestCount());
+        }
+    }
+
+    /**
+     * test that an expired record is revalidated with the validators Crossref sent with it, that a 304 puts it back
+     * in the cache without a body, and that a changed record replaces it
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void xrefRevalidationTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson)
+                                               .addHeader("ETag", "\"v1\"")
+                                               .addHeader("Last-Modified", "Tue, 01 Oct 2019 00:00:00 GMT"));
+            crossref.enqueue(new MockResponse().setResponseCode(304));
+            crossref.enqueue(new MockResponse().setBody(xrefJson).addHeader("ETag", "\"v2\""));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            AtomicLong now = new AtomicLong();
+            underTest.xrefCache = new ExpiringLruCache<>(10, 1000, 60000, now::get);
+
+            String doi = "10.4137/cmc.s38446";
+            CrossrefRecord first = underTest.retrieveXrefRecord(doi);
+            RecordedRequest request = crossref.takeRequest();
+            assertNull(request.getHeader("If-None-Match"));
+
+            now.set(1000);
+            assertSame(first, underTest.retrieveXrefRecord(doi));
+            request = crossref.takeRequest();
+            assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+            assertEquals("Tue, 01 Oct 2019 00:00:00 GMT", request.getHeader("If-Modified-Since"));
+            assertEquals(1, underTest.xrefNotModified.get());
+
+            //the 304 restarted the time to live of the record
+            now.set(1999);
+            assertSame(first, underTest.retrieveXrefRecord(doi));
+            assertEquals(2, crossref.getRequestCount());
+
+            now.set(2000);
+            CrossrefRecord changed = underTest.retrieveXrefRecord(doi);
+            assertNotSame(first, changed);
+            assertEquals("\"v2\"", changed.getEtag());
+            assertFalse(changed.isStale());
+            assertEquals(1, underTest.xrefModified.get());
+            assertEquals(3, crossref.getRequestCount());
+        }
+    }
+
+    /**
+     * test that a repeated lookup is answered from the result cache without Crossref or PASS, and that the
+     * result is dropped when the journal it names is updated
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void resultCacheTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            String doi = "10.4137/cmc.s38446";
+            DoiResponse first = underTest.lookup(doi);
+            assertEquals(200, first.getStatus());
+            underTest.xrefCache.clear();
+
+            assertSame(first, underTest.lookup(doi));
+            assertEquals(1, crossref.getRequestCount());
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+            assertEquals(1, underTest.resultCache.getHits());
+
+            //an update to another journal leaves the result alone
+            underTest.resultCache.put("10.1234/other",
+                                      DoiResponse.journal(completeId.toString(),
+                                                          underTest.journalVersions.current(), null));
+            Journal journal = new Journal();
+            journal.setJournalName(journalName);
+            journal.setIssns(Arrays.asList(issn1, issn2, issn3));
+            underTest.updateJournalInPass(journal);
+            assertSame(first, underTest.cachedResult(doi));
+            assertNull(underTest.cachedResult("10.1234/other"));
+            assertNull(underTest.resultCache.get("10.1234/other"));
+        }
+    }
+
+    /**
+     * test that a result whose resolution added ISSNs to its journal is cached as current, so that a repeated lookup
+     * needs neither Crossref nor PASS
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void resultCacheAfterJournalUpdateTest() throws Exception {
+        when(passClientMock.findAllByAttribute(Journal.class, "issns", "Print:1179-5468")).thenReturn(
+            new HashSet<>(Collections.singleton(completeId)));
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            String doi = "10.4137/cmc.s38446";
+            DoiResponse first = underTest.lookup(doi);
+            assertEquals(200, first.getStatus());
+            verify(passClientMock, times(1)).updateResource(any());
+            clearInvocations(passClientMock);
+
+            assertSame(first, underTest.lookup(doi));
+            assertEquals(1, crossref.getRequestCount());
+            verifyNoMoreInteractions(passClientMock);
+        }
+    }
+
+    /**
+     * test that a result read often is refreshed in the background shortly before it expires, revalidating its
+     * Crossref record, while readers go on getting the cached result; and that no refresh is made while Crossref
+     * requests have no more than their reserve of the rate limit
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void refreshAheadTest() throws Exception {
+        Journal created = new Journal();
+        created.setId(newJournalId);
+        created.setJournalName("Clinical Medicine Insights: Cardiology");
+        created.setIssns(Arrays.asList("Print:1179-5468", "Online:1179-5468"));
+        when(passClientMock.readResource(newJournalId, Journal.class)).thenReturn(created);
+
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson).addHeader("ETag", "\"v1\""));
+            crossref.enqueue(new MockResponse().setResponseCode(304));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            AtomicLong now = new AtomicLong();
+            underTest.resultCache = new ExpiringLruCache<>(10, 1000, now::get);
+            underTest.refreshExecutor = Executors.newSingleThreadExecutor();
+            underTest.refreshAhead = 200;
+            underTest.refreshMinReads = 2;
+            underTest.refreshReserve = 50;
+
+            String doi = "10.4137/cmc.s38446";
+            DoiResponse first = underTest.lookup(doi);
+            assertEquals(200, first.getStatus());
+
+            //read often, but not yet close to expiry
+            now.set(500);
+            assertSame(first, underTest.lookup(doi));
+            assertSame(first, underTest.lookup(doi));
+
+            //close to expiry, but Crossref has no capacity to spare
+            CrossrefRateLimiter limiter = underTest.xrefRateLimiter;
+            underTest.xrefRateLimiter = new CrossrefRateLimiter(1, 1000, 1, 0);
+            now.set(850);
+            assertSame(first, underTest.lookup(doi));
+            waitFor(() -> underTest.refreshSkipped.get() == 1);
+            assertEquals(1, crossref.getRequestCount());
+
+            underTest.xrefRateLimiter = limiter;
+            assertSame(first, underTest.lookup(doi));
+            underTest.refreshExecutor.shutdown();
+            assertTrue(underTest.refreshExecutor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(1, underTest.refreshed.get());
+            crossref.takeRequest();
+            assertEquals("\"v1\"", crossref.takeRequest().getHeader("If-None-Match"));
+
+            //the refreshed result outlives the one it replaced
+            now.set(1500);
+            DoiResponse refreshed = underTest.lookup(doi);
+            assertEquals(200, refreshed.getStatus());
+            assertEquals(first.getJournalId(), refreshed.getJournalId());
+            assertEquals(2, crossref.getRequestCount());
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+        }
+    }
+
+    /**
+     * test that dois not found on Crossref, and dois which are not for journal articles, are answered from the
+     * negative cache with the same status, without going back to Crossref
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void negativeCacheTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setResponseCode(404).setBody("Resource not found."));
+            crossref.enqueue(new MockResponse().setBody(
+                "{\"status\":\"ok\",\"message-type\":\"work\",\"message\":{\"type\":\"book\"," +
+                "\"container-title\":[\"A Book Series\"]}}"));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            String missing = "10.1212/abc.DEF";
+            String book = "10.1007/978-3-319-12345-6";
+            for (int i = 0; i < 3; i++) {
+                assertEquals(404, underTest.lookup(missing).getStatus());
+                assertEquals(422, underTest.lookup(book).getStatus());
+            }
+            assertEquals(2, crossref.getRequestCount());
+            assertEquals(4, underTest.negativeCache.getHits());
+            assertEquals(0, underTest.resultCache.size());
+        }
+    }
+
+    /**
+     * test that concurrent resolutions of different dois in the same new journal create the journal only once
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrentJournalCreationTest() throws Exception {
+        String name = "Advanced Research in Animal Husbandry";
+        when(passClientMock.createAndReadResource(any(), eq(Journal.class))).thenAnswer(i -> {
+            //long enough for every request to miss in find() before the journal exists
+            Thread.sleep(200);
+            Journal created = i.getArgument(0);
+            created.setId(newJournalId);
+            return created;
+        });
+        when(passClientMock.readResource(newJournalId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(newJournalId);
+            journal.setJournalName(name);
+            journal.setIssns(new ArrayList<>(Collections.singletonList(issn6)));
+            return journal;
+        });
+
+        int requests = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Callable<Journal> resolve = () -> {
+                Journal xrefJournal = new Journal();
+                xrefJournal.setJournalName(name);
+                xrefJournal.getIssns().add(issn6);
+                start.await();
+                return underTest.updateJournalInPass(xrefJournal);
+            };
+            List<Future<Journal>> results = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                results.add(executor.submit(resolve));
+            }
+            start.countDown();
+
+            for (Future<Journal> result : results) {
+                assertEquals(newJournalId, result.get().getId());
+            }
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * test that concurrent requests for the same new journal create it only once when there is no journal index, and
+     * PASS does not show the journal yet to the requests which wait for it to be created
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrentJournalCreationWithoutIndexTest() throws Exception {
+        String name = "Advanced Research in Animal Husbandry";
+        underTest.journalIndex = new JournalIndex(passClientMock, 0, 600000);
+        when(passClientMock.createAndReadResource(any(), eq(Journal.class))).thenAnswer(i -> {
+            Thread.sleep(200);
+            Journal created = i.getArgument(0);
+            created.setId(newJournalId);
+            return created;
+        });
+        //PASS reads the new journal back, but does not find it by name or issn
+        when(passClientMock.readResource(newJournalId, Journal.class)).thenAnswer(i -> {
+            Journal journal = new Journal();
+            journal.setId(newJournalId);
+            journal.setJournalName(name);
+            journal.setIssns(new ArrayList<>(Collections.singletonList(issn6)));
+            return journal;
+        });
+
+        int requests = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Callable<Journal> resolve = () -> {
+                Journal xrefJournal = new Journal();
+                xrefJournal.setJournalName(name);
+                xrefJournal.getIssns().add(issn6);
+                start.await();
+                return underTest.updateJournalInPass(xrefJournal);
+            };
+            List<Future<Journal>> results = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                results.add(executor.submit(resolve));
+            }
+            start.countDown();
+
+            for (Future<Journal> result : results) {
+                assertEquals(newJournalId, result.get().getId());
+            }
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * test that concurrent requests for the same doi share a single resolution
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void concurrentLookupsAreCoalescedTest() throws Exception {
+        int requests = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson).setHeadersDelay(500, TimeUnit.MILLISECONDS));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            CountDownLatch start = new CountDownLatch(1);
+            Callable<DoiResponse> lookup = () -> {
+                start.await();
+                return underTest.lookup("10.4137/cmc.s38446");
+            };
+            List<Future<DoiResponse>> results = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                results.add(executor.submit(lookup));
+            }
+            start.countDown();
+
+            for (Future<DoiResponse> result : results) {
+                assertEquals(200, result.get().getStatus());
+                assertEquals(newJournalId.toString(), result.get().getBody().getString("journal-id"));
+            }
+            assertEquals(1, crossref.getRequestCount());
+            assertEquals(requests - 1, underTest.coalescedRequests.get());
+            verify(passClientMock, times(1)).createAndReadResource(any(), eq(Journal.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * test that an asynchronous request releases the calling thread while Crossref is consulted, and completes
+     * with the same response as a blocking one
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void asyncLookupTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson).setHeadersDelay(500, TimeUnit.MILLISECONDS));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            AsyncContext async = mock(AsyncContext.class);
+            CountDownLatch completed = new CountDownLatch(1);
+            when(request.getParameter("doi")).thenReturn("10.4137/cmc.s38446");
+            when(request.isAsyncSupported()).thenReturn(true);
+            when(request.startAsync()).thenReturn(async);
+            doAnswer(i -> {
+                completed.countDown();
+                return null;
+            }).when(async).complete();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpServletResponse response = mock(HttpServletResponse.class);
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            });
+
+            long start = System.nanoTime();
+            underTest.doGet(request, response);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+            assertEquals(1, completed.getCount());
+
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            verify(response).setStatus(200);
+            try (JsonReader reader = Json.createReader(new StringReader(body.toString("UTF-8")))) {
+                assertEquals(newJournalId.toString(), reader.readObject().getString("journal-id"));
+            }
+        }
+    }
+
+    /**
+     * test that a request records the time spent in each stage, and is counted by the status of its response
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void metricsTest() throws Exception {
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson).setHeadersDelay(100, TimeUnit.MILLISECONDS));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getParameter("doi")).thenReturn("10.4137/cmc.s38446", "4137/cmc.s38446");
+            HttpServletResponse response = mock(HttpServletResponse.class);
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                }
+            });
+
+            underTest.doGet(request, response);
+            underTest.doGet(request, response);
+
+            ServiceMetrics metrics = underTest.metrics;
+            assertEquals(2, metrics.getLatency(ServiceMetrics.Stage.VERIFY).getCount());
+            assertEquals(1, metrics.getLatency(ServiceMetrics.Stage.CROSSREF).getCount());
+            assertTrue(metrics.getLatency(ServiceMetrics.Stage.CROSSREF).getSum() >= 0.1);
+            assertEquals(1, metrics.getLatency(ServiceMetrics.Stage.BUILD).getCount());
+            //a new journal is looked for again under its lock, before it is created
+            assertEquals(2, metrics.getLatency(ServiceMetrics.Stage.FIND).getCount());
+            assertEquals(1, metrics.getLatency(ServiceMetrics.Stage.CREATE).getCount());
+            assertEquals(0, metrics.getLatency(ServiceMetrics.Stage.READ).getCount());
+            assertEquals(2, metrics.getLatency(ServiceMetrics.Stage.WRITE).getCount());
+            assertEquals(1, metrics.getResponses(200));
+            assertEquals(1, metrics.getResponses(400));
+
+            String text = metrics.write();
+            assertTrue(text, text.contains("pass_doi_requests_in_flight 0\n"));
+            assertTrue(text, text.contains("pass_doi_cache_misses_total{cache=\"result\"} 1\n"));
+            assertTrue(text, text.contains("pass_doi_crossref_circuit_state{state=\"closed\"} 1\n"));
+        }
+    }
+
+    /**
+     * test that a request waiting on an active request for the same doi gives up after the timeout
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void coalescedLookupTimeoutTest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (MockWebServer crossref = new MockWebServer()) {
+            crossref.enqueue(new MockResponse().setBody(xrefJson).setHeadersDelay(1, TimeUnit.SECONDS));
+            crossref.start();
+            underTest.BASE_URL = crossref.url("/").toString();
+            underTest.coalesceTimeout = 100;
+
+            String doi = "10.4137/cmc.s38446";
+            Future<DoiResponse> first = executor.submit(() -> underTest.lookup(doi));
+            //make sure the first request is the active one
+            crossref.takeRequest();
+
+            DoiResponse second = underTest.lookup(doi);
+            assertEquals(429, second.getStatus());
+            assertEquals(200, first.get().getStatus());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * test that a bad doi gives the required error message
      */
@@ -426,5 +1310,11 @@ public class PassDoiServiceTest {
         assertNull(underTest.verify(doi4));
     }
 
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
 }
-
@@ -0,0 +1,145 @@
+/*
+ *
+ * Copyright 2019 Johns Hopkins University
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.dataconservancy.pass.doi.service;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.dataconservancy.pass.doi.service.ServiceMetrics.Stage;
+import org.junit.Test;
+
+/**
+ * Tests for recording the measurements of the service, and writing them out for Prometheus
+ */
+public class ServiceMetricsTest {
+
+    /**
+     * durations fall into the first bucket whose bound they do not exceed, and buckets are written cumulatively
+     */
+    @Test
+    public void histogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram(new double[] {0.001, 0.01});
+        histogram.record(MILLISECONDS.toNanos(1));
+        histogram.record(MILLISECONDS.toNanos(5));
+        histogram.record(MILLISECONDS.toNanos(50));
+
+        StringBuilder out = new StringBuilder();
+        histogram.write(out, "latency", "stage=\"x\"");
+        assertEquals("latency_bucket{stage=\"x\",le=\"0.001\"} 1\n" +
+                     "latency_bucket{stage=\"x\",le=\"0.01\"} 2\n" +
+                     "latency_bucket{stage=\"x\",le=\"+Inf\"} 3\n" +
+                     "latency_sum{stage=\"x\"} 0.056\n" +
+                     "latency_count{stage=\"x\"} 3\n", out.toString());
+        assertEquals(3, histogram.getCount());
+    }
+
+    /**
+     * stages, responses and registered counters and gauges are all written, each with its help and type
+     */
+    @Test
+    public void writeTest() {
+        ServiceMetrics metrics = new ServiceMetrics();
+        long start = metrics.start(Stage.CROSSREF);
+        long verifyStart = metrics.start(Stage.VERIFY);
+        metrics.stop(Stage.VERIFY, verifyStart);
+        metrics.response(200);
+        metrics.response(200);
+        metrics.response(404);
+        metrics.requestStarted();
+        AtomicLong hits = new AtomicLong(7);
+        metrics.counter("cache_hits", "Cache hits", "cache=\"a\"", hits::get);
+        metrics.counter("cache_hits", "Cache hits", "cache=\"b\"", () -> 1);
+        metrics.gauge("queue_size", "Queued work", "", () -> 2.5);
+
+        String text = metrics.write();
+        assertTrue(text, text.contains("# TYPE pass_doi_stage_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("pass_doi_stage_duration_seconds_count{stage=\"verify\"} 1\n"));
+        assertTrue(text, text.contains("pass_doi_stage_duration_seconds_count{stage=\"crossref\"} 0\n"));
+        assertTrue(text, text.contains("pass_doi_stage_in_flight{stage=\"crossref\"} 1\n"));
+        assertTrue(text, text.contains("pass_doi_stage_in_flight{stage=\"verify\"} 0\n"));
+        assertTrue(text, text.contains("pass_doi_requests_in_flight 1\n"));
+        assertTrue(text, text.contains("pass_doi_responses_total{status=\"200\"} 2\n"));
+        assertTrue(text, text.contains("pass_doi_responses_total{status=\"404\"} 1\n"));
+        assertTrue(text, text.contains("# HELP pass_doi_cache_hits_total Cache hits\n" +
+                                       "# TYPE pass_doi_cache_hits_total counter\n" +
+                                       "pass_doi_cache_hits_total{cache=\"a\"} 7\n" +
+                                       "pass_doi_cache_hits_total{cache=\"b\"} 1\n"));
+        assertTrue(text, text.contains("pass_doi_queue_size 2.5\n"));
+
+        //registered values are read as the metrics are written
+        hits.set(8);
+        metrics.stop(Stage.CROSSREF, start);
+        text = metrics.write();
+        assertTrue(text, text.contains("pass_doi_cache_hits_total{cache=\"a\"} 8\n"));
+        assertTrue(text, text.contains("pass_doi_stage_in_flight{stage=\"crossref\"} 0\n"));
+    }
+
+    /**
+     * the metrics servlet serves the metrics the service has published in the servlet context
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void metricsServletTest() throws Exception {
+        ServiceMetrics metrics = new ServiceMetrics();
+        metrics.response(200);
+        ServletContext context = mock(ServletContext.class);
+        when(context.getAttribute(ServiceMetrics.CONTEXT_ATTRIBUTE)).thenReturn(metrics);
+        ServletConfig config = mock(ServletConfig.class);
+        when(config.getServletContext()).thenReturn(context);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+
+        MetricsServlet servlet = new MetricsServlet();
+        servlet.init(config);
+        servlet.doGet(mock(HttpServletRequest.class), response);
+
+        verify(response).setContentType(ServiceMetrics.CONTENT_TYPE);
+        String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text, text.contains("pass_doi_responses_total{status=\"200\"} 1\n"));
+    }
+}